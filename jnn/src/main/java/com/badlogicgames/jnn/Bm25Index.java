@@ -0,0 +1,197 @@
+package com.badlogicgames.jnn;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+
+/**
+ * Inverted index over document text, scored with Okapi BM25. Documents are
+ * identified by their position in the collection, the same index the
+ * {@link com.badlogicgames.jnn.engines.NearestNeighbourEngine} reports.
+ */
+public class Bm25Index {
+    public static final float K1 = 1.2f;
+    public static final float B = 0.75f;
+
+    public static class Postings {
+        int[] docs = new int[4];
+        int[] frequencies = new int[4];
+        int size;
+
+        void add(int doc, int frequency) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            docs[size] = doc;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+
+    public static class Bm25Score {
+        public int index;
+        public float score;
+
+        public Bm25Score(int index, float score) {
+            this.index = index;
+            this.score = score;
+        }
+    }
+
+    Map<String, Postings> postings = new HashMap<>();
+    int[] docLengths = new int[0];
+    int numDocs;
+    long totalLength;
+
+    public synchronized void addDocuments(String[] texts) {
+        if (numDocs + texts.length > docLengths.length)
+            docLengths = Arrays.copyOf(docLengths, Math.max(numDocs + texts.length, docLengths.length * 2));
+        for (String text : texts) {
+            var terms = tokenize(text);
+            var frequencies = new HashMap<String, Integer>();
+            for (var term : terms) {
+                frequencies.merge(term, 1, Integer::sum);
+            }
+            for (var entry : frequencies.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), (key) -> new Postings()).add(numDocs, entry.getValue());
+            }
+            docLengths[numDocs] = terms.size();
+            totalLength += terms.size();
+            numDocs++;
+        }
+    }
+
+    public synchronized Bm25Score[] query(String text, int k) {
+        if (numDocs == 0 || k <= 0)
+            return new Bm25Score[0];
+
+        float avgLength = totalLength / (float) numDocs;
+        float[] scores = new float[numDocs];
+        boolean[] matched = new boolean[numDocs];
+        int numMatched = 0;
+        for (var term : new LinkedHashSet<>(tokenize(text))) {
+            var termPostings = postings.get(term);
+            if (termPostings == null)
+                continue;
+            float idf = (float) Math.log(1 + (numDocs - termPostings.size + 0.5) / (termPostings.size + 0.5));
+            for (int i = 0; i < termPostings.size; i++) {
+                int doc = termPostings.docs[i];
+                int frequency = termPostings.frequencies[i];
+                float norm = K1 * (1 - B + B * docLengths[doc] / avgLength);
+                scores[doc] += idf * frequency * (K1 + 1) / (frequency + norm);
+                if (!matched[doc]) {
+                    matched[doc] = true;
+                    numMatched++;
+                }
+            }
+        }
+
+        var heap = new PriorityQueue<Bm25Score>(Math.min(k, Math.max(numMatched, 1)),
+                (o1, o2) -> Float.compare(o1.score, o2.score));
+        for (int i = 0; i < numDocs; i++) {
+            if (!matched[i])
+                continue;
+            if (heap.size() < k) {
+                heap.offer(new Bm25Score(i, scores[i]));
+            } else if (heap.peek().score < scores[i]) {
+                heap.poll();
+                heap.offer(new Bm25Score(i, scores[i]));
+            }
+        }
+        var result = heap.toArray(new Bm25Score[heap.size()]);
+        Arrays.sort(result, (o1, o2) -> Float.compare(o2.score, o1.score));
+        return result;
+    }
+
+    public synchronized int numDocuments() {
+        return numDocs;
+    }
+
+    /**
+     * Estimated number of bytes of heap held by the postings and document lengths.
+     */
+    public synchronized long memoryUsage() {
+        long bytes = docLengths.length * 4L;
+        for (var entry : postings.entrySet()) {
+            // Map entry, term string and postings object overhead plus the two arrays.
+            bytes += 128 + entry.getKey().length() + entry.getValue().docs.length * 8L;
+        }
+        return bytes;
+    }
+
+    public synchronized void write(DataOutputStream out) throws IOException {
+        out.writeInt(numDocs);
+        out.writeLong(totalLength);
+        for (int i = 0; i < numDocs; i++)
+            out.writeInt(docLengths[i]);
+        out.writeInt(postings.size());
+        for (var entry : postings.entrySet()) {
+            var termPostings = entry.getValue();
+            VectorDocument.writeString(entry.getKey(), out);
+            out.writeInt(termPostings.size);
+            for (int i = 0; i < termPostings.size; i++) {
+                out.writeInt(termPostings.docs[i]);
+                out.writeInt(termPostings.frequencies[i]);
+            }
+        }
+    }
+
+    public static Bm25Index read(DataInputStream in) throws IOException {
+        var index = new Bm25Index();
+        index.numDocs = in.readInt();
+        index.totalLength = in.readLong();
+        index.docLengths = new int[index.numDocs];
+        for (int i = 0; i < index.numDocs; i++)
+            index.docLengths[i] = in.readInt();
+        int numTerms = in.readInt();
+        index.postings = new HashMap<>(numTerms * 2);
+        for (int i = 0; i < numTerms; i++) {
+            var term = VectorDocument.readString(in);
+            var termPostings = new Postings();
+            termPostings.size = in.readInt();
+            termPostings.docs = new int[Math.max(termPostings.size, 1)];
+            termPostings.frequencies = new int[termPostings.docs.length];
+            for (int j = 0; j < termPostings.size; j++) {
+                termPostings.docs[j] = in.readInt();
+                termPostings.frequencies[j] = in.readInt();
+            }
+            index.postings.put(term, termPostings);
+        }
+        return index;
+    }
+
+    /**
+     * Lower cases the text and splits it on anything that isn't a letter or
+     * digit, so umlauts and other non-ASCII letters stay part of their term.
+     */
+    public static List<String> tokenize(String text) {
+        var terms = new ArrayList<String>();
+        if (text == null)
+            return terms;
+        var lower = text.toLowerCase();
+        int start = -1;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0)
+                    start = i;
+            } else if (start >= 0) {
+                terms.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        if (start >= 0)
+            terms.add(lower.substring(start));
+        return terms;
+    }
+}
@@ -0,0 +1,645 @@
+package com.badlogicgames.jnn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.badlogicgames.jnn.VectorStore.VectorAlias;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+
+/**
+ * On-disk form of a collection: a directory of append-only segment files plus a
+ * manifest listing the committed segments in order. Every {@link #append} writes
+ * and syncs a new segment before committing it to the manifest, which is
+ * replaced atomically. Each record carries a CRC32 of its payload, so loading
+ * stops at the first torn or corrupt record and truncates the segment there.
+ * Files not referenced by the manifest are left overs of interrupted writes and
+ * get deleted.
+ *
+ * Many small appends leave many small segments behind. {@link #compact} merges
+ * runs of them into one large segment, preserving document order.
+ *
+ * Documents collapsed into a near-duplicate at ingestion are kept as aliases in
+ * a separate append-only file of checksummed records, recovered like segments.
+ *
+ * Next to the segments lives an optional index file holding derived state, like
+ * an engine's index, so it doesn't have to be rebuilt on load. It records the
+ * generation of the documents it was written for and is ignored once that's
+ * outdated. The generation is kept in the manifest, starts at a random value and
+ * changes with every append and every recovery that drops documents, but not
+ * with compactions, which keep the documents as they are.
+ */
+public class CollectionStorage {
+    public static final String MANIFEST_FILE = "MANIFEST";
+    public static final String INDEX_FILE = "INDEX";
+    public static final String ALIASES_FILE = "ALIASES";
+    static final int ALIASES_MAGIC = 0x4A4E4E41; // "JNNA"
+    static final int ALIASES_VERSION = 1;
+    static final int INDEX_MAGIC = 0x4A4E4E49; // "JNNI"
+    static final int INDEX_VERSION = 2;
+    static final String MANIFEST_HEADER = "JNN-MANIFEST 2";
+    static final String MANIFEST_HEADER_V1 = "JNN-MANIFEST 1";
+    static final int SEGMENT_MAGIC = 0x4A4E4E53; // "JNNS"
+    static final int SEGMENT_VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /** Segments smaller than this are candidates for compaction. */
+    public static long SMALL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    /** Minimum number of small segments in a row before they are compacted. */
+    public static int MIN_SEGMENTS_TO_COMPACT = 8;
+
+    public static interface IndexWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public static interface IndexReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    static class Segment {
+        String name;
+        int numDocuments;
+        long size;
+
+        Segment(String name, int numDocuments, long size) {
+            this.name = name;
+            this.numDocuments = numDocuments;
+            this.size = size;
+        }
+    }
+
+    final File dir;
+    final List<Segment> segments = new ArrayList<>();
+    int nextSegmentId = 1;
+    long generation = new Random().nextLong();
+    int numAliases;
+    boolean compacting;
+    boolean deleted;
+    final Object indexLock = new Object();
+
+    CollectionStorage(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Creates the directory and an empty manifest for a new collection.
+     */
+    public static CollectionStorage create(File dir) {
+        // Never touch files we didn't write, e.g. left overs of a collection that
+        // couldn't be deleted completely, they have to be removed by hand.
+        var files = dir.listFiles();
+        if (files != null && files.length > 0)
+            throw new RuntimeException("Collection directory " + dir.getAbsolutePath() + " is not empty");
+        if (!dir.exists() && !dir.mkdirs())
+            throw new RuntimeException("Could not create collection directory " + dir.getAbsolutePath());
+        var storage = new CollectionStorage(dir);
+        storage.writeManifest();
+        return storage;
+    }
+
+    public static boolean exists(File dir) {
+        return new File(dir, MANIFEST_FILE).exists();
+    }
+
+    /**
+     * Opens an existing collection directory, recovering from interrupted writes,
+     * and adds its documents to the given list in order.
+     */
+    public static CollectionStorage open(File dir, List<VectorDocument> documents) {
+        var storage = new CollectionStorage(dir);
+        // Older manifests are rewritten right away, so their random generation sticks.
+        boolean upgrade = !storage.readManifest();
+
+        boolean changed = false;
+        var referenced = new HashSet<String>();
+        for (var segment : new ArrayList<>(storage.segments)) {
+            int numDocuments = documents.size();
+            long size = readSegment(new File(dir, segment.name), documents);
+            if (size < 0) {
+                System.err.println("Dropping invalid segment " + segment.name + " of " + dir.getName());
+                storage.segments.remove(segment);
+                changed = true;
+                continue;
+            }
+            referenced.add(segment.name);
+            if (segment.numDocuments != documents.size() - numDocuments || segment.size != size) {
+                segment.numDocuments = documents.size() - numDocuments;
+                segment.size = size;
+                changed = true;
+            }
+        }
+        referenced.add(MANIFEST_FILE);
+        referenced.add(INDEX_FILE);
+        referenced.add(ALIASES_FILE);
+        for (var file : dir.listFiles()) {
+            if (!referenced.contains(file.getName()) && !file.delete())
+                System.err.println("Could not delete unreferenced file " + file.getAbsolutePath());
+        }
+        if (changed)
+            storage.generation++;
+        if (changed || upgrade)
+            storage.writeManifest();
+        return storage;
+    }
+
+    public synchronized int numSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Identifies the committed documents, see {@link #writeIndex}.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized int numDocuments() {
+        int numDocuments = 0;
+        for (var segment : segments)
+            numDocuments += segment.numDocuments;
+        return numDocuments;
+    }
+
+    /**
+     * Reads the documents of all committed segments into the given list, e.g. to
+     * reload a collection whose documents were dropped from memory. Like
+     * {@link #readDocuments(int, int, List)}, it doesn't hold the lock meanwhile.
+     */
+    public void readDocuments(List<VectorDocument> documents) {
+        readDocuments(0, numDocuments(), documents);
+    }
+
+    /**
+     * Reads the documents in the given range of committed documents into the
+     * list, only touching the segments that overlap it. The segments are read
+     * outside the lock, a read that races with a compaction retries on the
+     * compacted segments.
+     */
+    public void readDocuments(int offset, int count, List<VectorDocument> documents) {
+        while (true) {
+            List<Segment> snapshot;
+            synchronized (this) {
+                if (deleted)
+                    throw new RuntimeException("Collection " + dir.getName() + " has been deleted");
+                snapshot = new ArrayList<>(segments);
+            }
+            var read = new ArrayList<VectorDocument>(count);
+            boolean changed = false;
+            int start = 0;
+            for (var segment : snapshot) {
+                int end = start + segment.numDocuments;
+                if (end > offset && start < offset + count) {
+                    var segmentDocuments = new ArrayList<VectorDocument>(segment.numDocuments);
+                    if (readSegment(new File(dir, segment.name), segmentDocuments) != segment.size
+                            || segmentDocuments.size() != segment.numDocuments) {
+                        changed = true;
+                        break;
+                    }
+                    read.addAll(segmentDocuments.subList(Math.max(0, offset - start),
+                            Math.min(segment.numDocuments, offset + count - start)));
+                }
+                start = end;
+            }
+            if (!changed) {
+                if (read.size() != count)
+                    throw new RuntimeException("Collection " + dir.getName() + " has no documents " + offset + " to "
+                            + (offset + count));
+                documents.addAll(read);
+                return;
+            }
+            synchronized (this) {
+                if (segments.equals(snapshot))
+                    throw new RuntimeException("Segment of " + dir.getName() + " changed since it was committed");
+            }
+        }
+    }
+
+    public synchronized int numAliases() {
+        return numAliases;
+    }
+
+    /**
+     * Reads the aliases in the given range into the list. The aliases file is
+     * appended to in place, so unlike segments it is read under the lock.
+     */
+    public synchronized void readAliases(int offset, int count, List<VectorAlias> aliases) {
+        if (deleted)
+            throw new RuntimeException("Collection " + dir.getName() + " has been deleted");
+        if (offset + count > numAliases)
+            throw new RuntimeException("Collection " + dir.getName() + " has no aliases " + offset + " to "
+                    + (offset + count));
+        var all = new ArrayList<VectorAlias>(numAliases);
+        readRecords(new File(dir, ALIASES_FILE), ALIASES_MAGIC, ALIASES_VERSION,
+                (in) -> all.add(VectorAlias.decode(in)));
+        aliases.addAll(all.subList(offset, offset + count));
+    }
+
+    /**
+     * Reads the aliases of near-duplicate documents into the given list.
+     */
+    public synchronized void readAliases(List<VectorAlias> aliases) {
+        var file = new File(dir, ALIASES_FILE);
+        int start = aliases.size();
+        if (file.exists() && readRecords(file, ALIASES_MAGIC, ALIASES_VERSION,
+                (in) -> aliases.add(VectorAlias.decode(in))) < 0) {
+            System.err.println("Dropping invalid aliases of " + dir.getName());
+            file.delete();
+        }
+        numAliases = aliases.size() - start;
+    }
+
+    /**
+     * Appends the aliases to the aliases file. They reference their canonical
+     * documents by uri and index, so they are appended after those are.
+     */
+    public synchronized void appendAliases(VectorAlias[] aliases) {
+        if (deleted)
+            throw new RuntimeException("Collection " + dir.getName() + " has been deleted");
+        writeRecords(new File(dir, ALIASES_FILE), true, ALIASES_MAGIC, ALIASES_VERSION, List.of(aliases),
+                VectorAlias::encode);
+        numAliases += aliases.length;
+    }
+
+    /**
+     * Writes the documents to a new segment and commits it to the manifest.
+     */
+    public void append(VectorDocument[] documents) {
+        String name;
+        synchronized (this) {
+            if (deleted)
+                throw new RuntimeException("Collection " + dir.getName() + " has been deleted");
+            name = newSegmentName();
+        }
+        long size = writeSegment(new File(dir, name), List.of(documents));
+        synchronized (this) {
+            segments.add(new Segment(name, documents.length, size));
+            generation++;
+            writeManifest();
+        }
+    }
+
+    public synchronized void delete() {
+        deleted = true;
+        var files = dir.listFiles();
+        if (files != null) {
+            for (var file : files)
+                file.delete();
+        }
+        if (dir.exists() && !dir.delete())
+            throw new RuntimeException("Could not delete collection directory " + dir.getAbsolutePath());
+    }
+
+    /**
+     * Atomically replaces the index file with the data written by the writer,
+     * belonging to the documents of the given {@link #generation}.
+     */
+    public void writeIndex(long generation, IndexWriter writer) {
+        // An evicted collection may still be writing its index when it's loaded again.
+        synchronized (indexLock) {
+            writeIndexFile(generation, writer);
+        }
+    }
+
+    private void writeIndexFile(long generation, IndexWriter writer) {
+        var file = new File(dir, INDEX_FILE);
+        var tmpFile = new File(dir, INDEX_FILE + ".tmp");
+        long start = System.nanoTime();
+        try (var fileOut = new FileOutputStream(tmpFile)) {
+            var checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            var out = new DataOutputStream(checked);
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(generation);
+            writer.write(out);
+            out.flush();
+            new DataOutputStream(fileOut).writeLong(checked.getChecksum().getValue());
+            fileOut.getChannel().force(true);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new RuntimeException("Could not write index " + tmpFile.getAbsolutePath(), e);
+        }
+        synchronized (this) {
+            if (deleted) {
+                tmpFile.delete();
+                return;
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not replace index " + file.getAbsolutePath(), e);
+            }
+        }
+        System.out.println("Writing index of collection " + dir.getName() + " took: "
+                + (System.nanoTime() - start) / 1e9f + " secs");
+    }
+
+    /**
+     * Returns what the reader read from the index file, or null if there is no
+     * index file for the documents of the given generation, or it is corrupt.
+     */
+    public <T> T readIndex(long generation, IndexReader<T> reader) {
+        var file = new File(dir, INDEX_FILE);
+        if (!file.exists())
+            return null;
+        try {
+            try (var in = new DataInputStream(new FileInputStream(file))) {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || in.readLong() != generation)
+                    return null;
+            }
+
+            // Verify the whole file up front, the reader might not consume all of it.
+            long payloadLength = file.length() - 8;
+            try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                var crc = new CRC32();
+                var buffer = new byte[64 * 1024];
+                for (long position = 0; position < payloadLength;) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, payloadLength - position));
+                    if (read < 0)
+                        throw new IOException("Unexpected end of file");
+                    crc.update(buffer, 0, read);
+                    position += read;
+                }
+                if (in.readLong() != crc.getValue())
+                    throw new IOException("Checksum mismatch");
+            }
+
+            try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                in.skipNBytes(16);
+                return reader.read(in);
+            }
+        } catch (Throwable t) {
+            System.err.println("Ignoring unreadable index " + file.getAbsolutePath() + ": " + t.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized boolean needsCompaction() {
+        return !compacting && !deleted && findCompactionRun() != null;
+    }
+
+    /**
+     * Merges the first run of at least {@link #MIN_SEGMENTS_TO_COMPACT} small
+     * segments into one. Appends may happen concurrently, they only ever add
+     * segments after the run.
+     */
+    public void compact() {
+        List<Segment> run;
+        String name;
+        synchronized (this) {
+            if (compacting || deleted)
+                return;
+            run = findCompactionRun();
+            if (run == null)
+                return;
+            compacting = true;
+            name = newSegmentName();
+        }
+
+        var file = new File(dir, name);
+        try {
+            long start = System.nanoTime();
+            int numDocuments = 0;
+            long size;
+            // Records were validated when the segments were loaded or written, copy them verbatim.
+            try (var fileOut = new FileOutputStream(file)) {
+                var out = new DataOutputStream(fileOut);
+                out.writeInt(SEGMENT_MAGIC);
+                out.writeInt(SEGMENT_VERSION);
+                var channel = fileOut.getChannel();
+                for (var segment : run) {
+                    try (var in = new FileInputStream(new File(dir, segment.name))) {
+                        var inChannel = in.getChannel();
+                        long position = SEGMENT_HEADER_SIZE;
+                        while (position < segment.size)
+                            position += inChannel.transferTo(position, segment.size - position, channel);
+                    }
+                    numDocuments += segment.numDocuments;
+                }
+                channel.force(true);
+                size = channel.size();
+            }
+
+            synchronized (this) {
+                if (deleted) {
+                    file.delete();
+                    return;
+                }
+                int index = segments.indexOf(run.get(0));
+                for (int i = 0; i < run.size(); i++)
+                    segments.remove(index);
+                segments.add(index, new Segment(name, numDocuments, size));
+                writeManifest();
+                for (var segment : run)
+                    new File(dir, segment.name).delete();
+            }
+            System.out.println("Compacted " + run.size() + " segments of collection " + dir.getName() + " took: "
+                    + (System.nanoTime() - start) / 1e9f + " secs");
+        } catch (Throwable t) {
+            file.delete();
+            throw new RuntimeException("Could not compact collection " + dir.getName(), t);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private List<Segment> findCompactionRun() {
+        var run = new ArrayList<Segment>();
+        for (var segment : segments) {
+            if (segment.size < SMALL_SEGMENT_BYTES) {
+                run.add(segment);
+                continue;
+            }
+            if (run.size() >= MIN_SEGMENTS_TO_COMPACT)
+                return run;
+            run.clear();
+        }
+        return run.size() >= MIN_SEGMENTS_TO_COMPACT ? run : null;
+    }
+
+    private String newSegmentName() {
+        return String.format("segment-%08d.seg", nextSegmentId++);
+    }
+
+    private static long writeSegment(File file, List<VectorDocument> documents) {
+        return writeRecords(file, false, SEGMENT_MAGIC, SEGMENT_VERSION, documents, VectorDocument::encode);
+    }
+
+    /**
+     * Writes the values as checksummed records and syncs the file. When appending
+     * to an existing file, the header is only written if the file is empty, and a
+     * failed write is truncated away again.
+     */
+    private static <T> long writeRecords(File file, boolean append, int magic, int version, List<T> values,
+            BiConsumer<DataOutputStream, T> encoder) {
+        long length = append ? file.length() : 0;
+        var crc = new CRC32();
+        var record = new ByteArrayOutputStream();
+        var recordOut = new DataOutputStream(record);
+        try (var fileOut = new FileOutputStream(file, append);
+                var out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            if (length == 0) {
+                out.writeInt(magic);
+                out.writeInt(version);
+            }
+            for (var value : values) {
+                record.reset();
+                encoder.accept(recordOut, value);
+                recordOut.flush();
+                crc.reset();
+                crc.update(record.toByteArray(), 0, record.size());
+                out.writeInt(record.size());
+                out.writeInt((int) crc.getValue());
+                record.writeTo(out);
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+            return fileOut.getChannel().size();
+        } catch (IOException e) {
+            if (length == 0)
+                file.delete();
+            else
+                truncate(file, length);
+            throw new RuntimeException("Could not write " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Reads the valid records of the segment, truncating it after the last one.
+     * Returns the resulting size, or -1 if the segment header is invalid.
+     */
+    static long readSegment(File file, List<VectorDocument> documents) {
+        return readRecords(file, SEGMENT_MAGIC, SEGMENT_VERSION, (in) -> documents.add(VectorDocument.decode(in)));
+    }
+
+    /**
+     * Passes the payload of each valid record to the decoder, truncating the file
+     * after the last one. Returns the resulting size, or -1 if the header is
+     * invalid.
+     */
+    private static long readRecords(File file, int magic, int version, Consumer<DataInputStream> decoder) {
+        if (!file.exists())
+            return -1;
+        long fileLength = file.length();
+        long position = 0;
+        var crc = new CRC32();
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (fileLength < SEGMENT_HEADER_SIZE || in.readInt() != magic || in.readInt() != version)
+                return -1;
+            position = SEGMENT_HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= fileLength) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > fileLength)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                decoder.accept(new DataInputStream(new ByteArrayInputStream(payload)));
+                position += RECORD_HEADER_SIZE + length;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file.getAbsolutePath(), e);
+        }
+
+        if (position < fileLength) {
+            System.err.println("Truncating " + file.getAbsolutePath() + " from " + fileLength + " to " + position
+                    + " bytes after torn or corrupt record");
+            truncate(file, position);
+        }
+        return position;
+    }
+
+    private static void truncate(File file, long length) {
+        try (var raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not truncate " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Returns false if the manifest is in an older format.
+     */
+    private boolean readManifest() {
+        var file = new File(dir, MANIFEST_FILE);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read manifest " + file.getAbsolutePath(), e);
+        }
+        boolean v1 = lines.size() >= 2 && lines.get(0).equals(MANIFEST_HEADER_V1);
+        if (lines.size() < (v1 ? 2 : 3) || !(v1 || lines.get(0).equals(MANIFEST_HEADER)))
+            throw new RuntimeException("Invalid manifest " + file.getAbsolutePath());
+        var crc = new CRC32();
+        for (int i = 0; i < lines.size() - 1; i++)
+            crc.update((lines.get(i) + "\n").getBytes(StandardCharsets.UTF_8));
+        if (!lines.get(lines.size() - 1).equals("CRC " + Long.toHexString(crc.getValue())))
+            throw new RuntimeException("Corrupt manifest " + file.getAbsolutePath());
+
+        // Manifests without a generation keep the random one, their index is rebuilt once.
+        int first = 1;
+        if (!v1)
+            generation = Long.parseUnsignedLong(lines.get(first++).substring("GENERATION ".length()), 16);
+        for (int i = first; i < lines.size() - 1; i++) {
+            var parts = lines.get(i).split(" ");
+            segments.add(new Segment(parts[0], Integer.parseInt(parts[1]), Long.parseLong(parts[2])));
+            int id = Integer.parseInt(parts[0].substring("segment-".length(), parts[0].length() - ".seg".length()));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+        return !v1;
+    }
+
+    private void writeManifest() {
+        var content = new StringBuilder();
+        content.append(MANIFEST_HEADER).append("\n");
+        content.append("GENERATION ").append(Long.toHexString(generation)).append("\n");
+        for (var segment : segments)
+            content.append(segment.name).append(" ").append(segment.numDocuments).append(" ").append(segment.size)
+                    .append("\n");
+        var crc = new CRC32();
+        crc.update(content.toString().getBytes(StandardCharsets.UTF_8));
+        content.append("CRC ").append(Long.toHexString(crc.getValue())).append("\n");
+
+        var file = new File(dir, MANIFEST_FILE);
+        var tmpFile = new File(dir, MANIFEST_FILE + ".tmp");
+        try (var out = new FileOutputStream(tmpFile)) {
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+            out.getChannel().force(true);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write manifest " + tmpFile.getAbsolutePath(), e);
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not replace manifest " + file.getAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.badlogicgames.jnn;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+
+/**
+ * Locality sensitive hash of normalized vectors for finding near-duplicates.
+ * Each vector gets a SimHash signature of {@link #NUM_BANDS} times
+ * {@link #BITS_PER_BAND} bits, one per random hyperplane, set if the vector lies
+ * on its positive side. Two vectors at an angle theta agree on a bit with
+ * probability 1 - theta / pi, so near-duplicates very likely share all bits of
+ * at least one band. Documents sharing a band are candidates, which are then
+ * checked against the exact cosine similarity.
+ *
+ * With 12 bands of 12 bits, documents with a cosine similarity of 0.95 end up
+ * candidates of each other with a probability of about 98%, while each band
+ * only spreads documents over 4096 buckets.
+ *
+ * Embeddings of real models share a common direction, so most of them lie on
+ * the same side of many hyperplanes and crowd into few buckets. The hyperplanes
+ * are therefore centered on the mean of the documents the index is built from.
+ * That costs some recall for borderline near-duplicates in exchange for evenly
+ * filled buckets. Buckets that are still crowded are capped, only the
+ * {@link #MAX_CANDIDATES_PER_BAND} most recently added documents of each are
+ * checked.
+ *
+ * Documents are identified by their position in the collection, like in the
+ * {@link com.badlogicgames.jnn.engines.NearestNeighbourEngine}.
+ */
+public class DuplicateIndex {
+    public static final int NUM_BANDS = 12;
+    public static final int BITS_PER_BAND = 12;
+    public static int MAX_CANDIDATES_PER_BAND = 64;
+
+    final float[][] hyperplanes;
+    /** Dot product of each hyperplane with the center, vectors above it are on its positive side. */
+    final float[] offsets;
+    final int[][][] buckets = new int[NUM_BANDS][1 << BITS_PER_BAND][];
+    final int[][] bucketSizes = new int[NUM_BANDS][1 << BITS_PER_BAND];
+    int numDocuments;
+    /** Number of lookups and the candidates they checked in total. */
+    public long numLookups;
+    public long numCandidates;
+
+    /**
+     * Creates an index centered on the mean of the sample's vectors, e.g. the
+     * documents it is built from, or the first ones added to an empty collection.
+     */
+    public DuplicateIndex(int numDimensions, List<VectorDocument> sample) {
+        // Fixed seed, so signatures are the same every time the index is built.
+        var random = new Random(numDimensions);
+        hyperplanes = new float[NUM_BANDS * BITS_PER_BAND][numDimensions];
+        for (var hyperplane : hyperplanes) {
+            for (int i = 0; i < numDimensions; i++)
+                hyperplane[i] = (float) random.nextGaussian();
+        }
+
+        var center = new float[numDimensions];
+        for (var doc : sample) {
+            for (int i = 0; i < numDimensions; i++)
+                center[i] += doc.vector[i] / sample.size();
+        }
+        offsets = new float[hyperplanes.length];
+        for (int plane = 0; plane < hyperplanes.length; plane++)
+            offsets[plane] = Linalg.dot(hyperplanes[plane], 0, center);
+    }
+
+    /**
+     * Returns the bucket of each band the vector falls into.
+     */
+    public int[] keys(float[] vector) {
+        var keys = new int[NUM_BANDS];
+        for (int band = 0, plane = 0; band < NUM_BANDS; band++) {
+            int key = 0;
+            for (int bit = 0; bit < BITS_PER_BAND; bit++, plane++) {
+                if (Linalg.dot(hyperplanes[plane], 0, vector) >= offsets[plane])
+                    key |= 1 << bit;
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    public void add(int doc, int[] keys) {
+        for (int band = 0; band < NUM_BANDS; band++) {
+            int key = keys[band];
+            var bucket = buckets[band][key];
+            int size = bucketSizes[band][key];
+            if (bucket == null) {
+                bucket = buckets[band][key] = new int[4];
+            } else if (size == bucket.length) {
+                bucket = buckets[band][key] = Arrays.copyOf(bucket, size * 2);
+            }
+            bucket[size] = doc;
+            bucketSizes[band][key] = size + 1;
+        }
+        numDocuments++;
+    }
+
+    /**
+     * Removes the documents at and after the given position, e.g. those of a
+     * write that failed. Buckets are in ascending order of position.
+     */
+    public void truncate(int numDocuments) {
+        for (int band = 0; band < NUM_BANDS; band++) {
+            for (int key = 0; key < buckets[band].length; key++) {
+                var bucket = buckets[band][key];
+                int size = bucketSizes[band][key];
+                while (size > 0 && bucket[size - 1] >= numDocuments)
+                    size--;
+                bucketSizes[band][key] = size;
+            }
+        }
+        this.numDocuments = Math.min(this.numDocuments, numDocuments);
+    }
+
+    /**
+     * Returns the position of the most similar document sharing a bucket with the
+     * vector whose cosine similarity is at least the threshold, or -1 if there is
+     * none. The vector and the documents' vectors must be normalized. At most
+     * {@link #NUM_BANDS} times {@link #MAX_CANDIDATES_PER_BAND} candidates are
+     * checked.
+     */
+    public int findDuplicate(float[] vector, int[] keys, List<VectorDocument> documents, float threshold) {
+        int best = -1;
+        float bestSimilarity = threshold;
+        var checked = new HashSet<Integer>();
+        numLookups++;
+        for (int band = 0; band < NUM_BANDS; band++) {
+            var bucket = buckets[band][keys[band]];
+            int size = bucketSizes[band][keys[band]];
+            for (int i = size - 1; i >= Math.max(0, size - MAX_CANDIDATES_PER_BAND); i--) {
+                int doc = bucket[i];
+                if (!checked.add(doc))
+                    continue;
+                numCandidates++;
+                float similarity = Linalg.dot(documents.get(doc).vector, 0, vector);
+                if (similarity >= bestSimilarity) {
+                    best = doc;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        return best;
+    }
+
+    public int numDocuments() {
+        return numDocuments;
+    }
+
+    /**
+     * Estimated number of bytes of heap held by the hyperplanes and buckets.
+     */
+    public long memoryUsage() {
+        long bytes = hyperplanes.length * (16 + hyperplanes[0].length * 4L + 4);
+        for (int band = 0; band < NUM_BANDS; band++) {
+            bytes += buckets[band].length * 12L;
+            for (var bucket : buckets[band]) {
+                if (bucket != null)
+                    bytes += 16 + bucket.length * 4L;
+            }
+        }
+        return bytes;
+    }
+}
@@ -1,14 +1,74 @@
 package com.badlogicgames.jnn;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.badlogicgames.jnn.VectorStore.NearestNeighbourEngineProvider;
 import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
 import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine.TopKSelection;
 
 public class Main {
 
+    static String getEnv(String name, String defaultValue) {
+        var value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value;
+    }
+
+    /**
+     * Parses tenant weights given as comma separated tenant=weight pairs.
+     */
+    static Map<String, Float> parseWeights(String weights) {
+        var result = new HashMap<String, Float>();
+        for (var pair : weights.split(",")) {
+            if (pair.isBlank())
+                continue;
+            var parts = pair.split("=");
+            if (parts.length != 2)
+                throw new RuntimeException("Invalid tenant weight " + pair + ", expected tenant=weight");
+            result.put(parts[0].trim(), Float.parseFloat(parts[1].trim()));
+        }
+        return result;
+    }
+
+    static QueryScheduler createQueryScheduler() {
+        var processors = Runtime.getRuntime().availableProcessors();
+        var maxConcurrent = Integer.parseInt(getEnv("JNN_QUERY_CONCURRENCY", Integer.toString(processors)));
+        var maxConcurrentPerTenant = Integer.parseInt(
+                getEnv("JNN_TENANT_QUERY_CONCURRENCY", Integer.toString(Math.max(1, maxConcurrent / 2))));
+        var maxQueueDepth = Integer.parseInt(getEnv("JNN_TENANT_QUEUE_DEPTH", "256"));
+        var queueTimeout = Long.parseLong(getEnv("JNN_QUERY_QUEUE_TIMEOUT_MS", "10000"));
+        return new QueryScheduler(maxConcurrent, maxConcurrentPerTenant, maxQueueDepth, queueTimeout,
+                parseWeights(getEnv("JNN_TENANT_WEIGHTS", "")));
+    }
+
     public static void main(String[] args) {
         var port = Integer.parseInt(System.getenv("JNN_PORT"));
-        System.out.println("Starting vector store server on port " + port);
-        new VectorStoreServer(port, "tmp",
-                (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 4, TopKSelection.SORT_SELECTION));
+        var shards = getEnv("JNN_SHARDS", null);
+        if (shards != null) {
+            var queryTimeout = Duration.ofMillis(Long.parseLong(getEnv("JNN_SHARD_QUERY_TIMEOUT_MS", "2000")));
+            var writeTimeout = Duration.ofMillis(Long.parseLong(getEnv("JNN_SHARD_WRITE_TIMEOUT_MS", "60000")));
+            System.out.println("Starting vector store coordinator on port " + port + " for shards " + shards);
+            new VectorStoreServer(port, new ShardedVectorStore(shards.split(","), queryTimeout, writeTimeout), null,
+                    createQueryScheduler());
+            return;
+        }
+
+        var dataDir = getEnv("JNN_DATA_DIR", "/data");
+        NearestNeighbourEngineProvider engineProvider = (numDimensions) -> new ExactNearestNeighbourEngine(
+                numDimensions, 4, TopKSelection.SORT_SELECTION);
+        var memoryBudget = Long.parseLong(getEnv("JNN_MEMORY_BUDGET_MB", "0")) * 1024 * 1024;
+        var primary = getEnv("JNN_REPLICATE_FROM", null);
+        if (primary != null) {
+            System.out.println("Starting vector store replica of " + primary + " on port " + port
+                    + " with data directory " + dataDir);
+            var store = new VectorStore(dataDir, engineProvider, memoryBudget);
+            new VectorStoreServer(port, store, new VectorStoreReplica(store, primary), createQueryScheduler());
+            return;
+        }
+
+        System.out.println("Starting vector store server on port " + port + " with data directory " + dataDir);
+        new VectorStoreServer(port, new VectorStore(dataDir, engineProvider, memoryBudget), null,
+                createQueryScheduler());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,292 @@
+package com.badlogicgames.jnn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Admits queries of many tenants, e.g. bots or collections, to a limited
+ * number of concurrent executions via weighted fair queuing. Each tenant gets
+ * its own queue. A query is tagged with a virtual start time, the later of the
+ * scheduler's virtual time and the finish time of the tenant's previous query,
+ * and finishes cost / weight later. Free slots go to the queued query with the
+ * earliest start time, so a tenant running expensive scans over a large
+ * collection quickly runs ahead in virtual time, while a cheap query of an idle
+ * tenant is admitted next.
+ *
+ * On top of that, no tenant may run more than a fixed number of queries at
+ * once, so a single tenant can't occupy all slots with long scans. Queues are
+ * bounded and queries waiting too long are rejected with a
+ * {@link QueryRejectedException}. Queued queries don't hold a thread, see
+ * {@link #submit}, so a flooding tenant can't exhaust the server's workers.
+ */
+public class QueryScheduler {
+    public static class QueryRejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public QueryRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    public static class TenantStats {
+        public String tenant;
+        public float weight;
+        public int running;
+        public int queued;
+        public long completed;
+        public long rejected;
+        public float averageWaitMillis;
+        public float maxWaitMillis;
+    }
+
+    static class Tenant {
+        final String id;
+        final float weight;
+        final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+        double lastFinishTag;
+        int running;
+        long completed;
+        long rejected;
+        long admitted;
+        long totalWaitNanos;
+        long maxWaitNanos;
+
+        Tenant(String id, float weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+
+        boolean isIdle() {
+            return running == 0 && queue.isEmpty();
+        }
+    }
+
+    static class Ticket {
+        final Tenant tenant;
+        final double startTag;
+        final long queuedAt = System.nanoTime();
+        final Consumer<Runnable> onAdmitted;
+        final Consumer<QueryRejectedException> onRejected;
+        ScheduledFuture<?> timeout;
+        boolean released;
+
+        Ticket(Tenant tenant, double startTag, Consumer<Runnable> onAdmitted,
+                Consumer<QueryRejectedException> onRejected) {
+            this.tenant = tenant;
+            this.startTag = startTag;
+            this.onAdmitted = onAdmitted;
+            this.onRejected = onRejected;
+        }
+    }
+
+    /**
+     * Maximum number of idle tenants without a configured weight to keep around.
+     * Beyond that, the longest idle ones are forgotten, so arbitrary client
+     * supplied tenant ids can't grow the scheduler without bound. A forgotten
+     * tenant starts over at the current virtual time and with fresh statistics.
+     */
+    public static int MAX_IDLE_TENANTS = 1000;
+
+    final int maxConcurrentQueries;
+    final int maxConcurrentQueriesPerTenant;
+    final int maxQueueDepth;
+    final long queueTimeoutMillis;
+    final Map<String, Float> weights;
+    final Map<String, Tenant> tenants = new HashMap<>();
+    /** Idle tenants without a configured weight, longest idle first. */
+    final LinkedHashMap<String, Tenant> idleTenants = new LinkedHashMap<>();
+    final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    double virtualTime;
+    int running;
+
+    /**
+     * Runs as many queries as there are processors at once, half of them for a
+     * single tenant at most, with all tenants weighted equally.
+     */
+    public QueryScheduler() {
+        this(Runtime.getRuntime().availableProcessors(),
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 256, 10000, new HashMap<>());
+    }
+
+    /**
+     * @param weights weight of each tenant, 1 for tenants not listed. A tenant with
+     *                weight 2 gets twice the share of a tenant with weight 1 when
+     *                both have queries queued.
+     */
+    public QueryScheduler(int maxConcurrentQueries, int maxConcurrentQueriesPerTenant, int maxQueueDepth,
+            long queueTimeoutMillis, Map<String, Float> weights) {
+        if (maxConcurrentQueries < 1 || maxConcurrentQueriesPerTenant < 1)
+            throw new RuntimeException("Concurrency limits must be at least 1");
+        this.maxConcurrentQueries = maxConcurrentQueries;
+        this.maxConcurrentQueriesPerTenant = maxConcurrentQueriesPerTenant;
+        this.maxQueueDepth = maxQueueDepth;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.weights = weights;
+    }
+
+    /**
+     * Queues a query without holding on to the calling thread. The cost should be
+     * proportional to the work the query does, e.g. the number of vector
+     * components it scans. Once it's the tenant's turn, onAdmitted is called with a callback that must be run when
+     * the query is done, to free its slot. If the tenant's queue is full or the
+     * query waited too long, onRejected is called instead. Either is called
+     * exactly once, possibly on the calling thread or the thread of another
+     * query, so they should hand the query off quickly, e.g. to an executor.
+     */
+    public void submit(String tenantId, long cost, Consumer<Runnable> onAdmitted,
+            Consumer<QueryRejectedException> onRejected) {
+        List<Ticket> admitted;
+        QueryRejectedException rejected = null;
+        synchronized (this) {
+            var tenant = tenants.get(tenantId);
+            if (tenant == null) {
+                tenant = new Tenant(tenantId, weights.getOrDefault(tenantId, 1f));
+                tenants.put(tenantId, tenant);
+            }
+            idleTenants.remove(tenantId);
+            if (tenant.queue.size() >= maxQueueDepth) {
+                tenant.rejected++;
+                rejected = new QueryRejectedException("Too many queued queries for tenant " + tenantId);
+                becameIdle(tenant);
+                admitted = List.of();
+            } else {
+                double startTag = Math.max(virtualTime, tenant.lastFinishTag);
+                tenant.lastFinishTag = startTag + Math.max(cost, 1) / (double) tenant.weight;
+                var ticket = new Ticket(tenant, startTag, onAdmitted, onRejected);
+                tenant.queue.add(ticket);
+                admitted = dispatch();
+                if (tenant.queue.contains(ticket))
+                    ticket.timeout = timeouts.schedule(() -> expire(ticket), queueTimeoutMillis,
+                            TimeUnit.MILLISECONDS);
+            }
+        }
+        if (rejected != null)
+            onRejected.accept(rejected);
+        admit(admitted);
+    }
+
+    private void expire(Ticket ticket) {
+        var tenant = ticket.tenant;
+        synchronized (this) {
+            if (!tenant.queue.remove(ticket))
+                return;
+            tenant.rejected++;
+            becameIdle(tenant);
+        }
+        ticket.onRejected.accept(new QueryRejectedException("Query of tenant " + tenant.id + " waited more than "
+                + queueTimeoutMillis + " ms"));
+    }
+
+    private void release(Ticket ticket) {
+        List<Ticket> admitted;
+        synchronized (this) {
+            if (ticket.released)
+                return;
+            ticket.released = true;
+            ticket.tenant.running--;
+            ticket.tenant.completed++;
+            running--;
+            admitted = dispatch();
+            becameIdle(ticket.tenant);
+        }
+        admit(admitted);
+    }
+
+    /**
+     * Notifies admitted queries, outside the lock as they may run the query right
+     * away. A query that can't be handed off gives its slot back.
+     */
+    private void admit(List<Ticket> admitted) {
+        for (var ticket : admitted) {
+            try {
+                ticket.onAdmitted.accept(() -> release(ticket));
+            } catch (Throwable t) {
+                t.printStackTrace();
+                release(ticket);
+            }
+        }
+    }
+
+    /**
+     * Remembers tenants without a configured weight once they have nothing
+     * running or queued, forgetting the longest idle ones beyond
+     * {@link #MAX_IDLE_TENANTS}.
+     */
+    private void becameIdle(Tenant tenant) {
+        if (!tenant.isIdle() || weights.containsKey(tenant.id))
+            return;
+        idleTenants.put(tenant.id, tenant);
+        var iterator = idleTenants.values().iterator();
+        while (idleTenants.size() > MAX_IDLE_TENANTS) {
+            tenants.remove(iterator.next().id);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Admits queued queries in order of their start tags while there are free
+     * slots, skipping tenants at their concurrency limit.
+     */
+    private List<Ticket> dispatch() {
+        var admitted = new ArrayList<Ticket>();
+        while (running < maxConcurrentQueries) {
+            Ticket next = null;
+            for (var tenant : tenants.values()) {
+                if (tenant.running >= maxConcurrentQueriesPerTenant || tenant.queue.isEmpty())
+                    continue;
+                var head = tenant.queue.peek();
+                if (next == null || head.startTag < next.startTag)
+                    next = head;
+            }
+            if (next == null)
+                break;
+            var tenant = next.tenant;
+            tenant.queue.poll();
+            tenant.running++;
+            running++;
+            virtualTime = Math.max(virtualTime, next.startTag);
+            if (next.timeout != null)
+                next.timeout.cancel(false);
+            long waitNanos = System.nanoTime() - next.queuedAt;
+            tenant.admitted++;
+            tenant.totalWaitNanos += waitNanos;
+            tenant.maxWaitNanos = Math.max(tenant.maxWaitNanos, waitNanos);
+            admitted.add(next);
+        }
+        return admitted;
+    }
+
+    public synchronized List<TenantStats> getStats() {
+        var result = new ArrayList<TenantStats>();
+        for (var tenant : tenants.values()) {
+            var stats = new TenantStats();
+            stats.tenant = tenant.id;
+            stats.weight = tenant.weight;
+            stats.running = tenant.running;
+            stats.queued = tenant.queue.size();
+            stats.completed = tenant.completed;
+            stats.rejected = tenant.rejected;
+            stats.averageWaitMillis = tenant.admitted == 0 ? 0 : tenant.totalWaitNanos / 1e6f / tenant.admitted;
+            stats.maxWaitMillis = tenant.maxWaitNanos / 1e6f;
+            result.add(stats);
+        }
+        result.sort((o1, o2) -> o1.tenant.compareTo(o2.tenant));
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+package com.badlogicgames.jnn;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.badlogicgames.jnn.VectorStore.VectorAlias;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+
+/**
+ * Ordered log of the changes applied to a {@link VectorStore}, read by replicas
+ * to follow along. Added documents and aliases are referenced by their position
+ * in the collection instead of being copied, so the log stays small. A collection's
+ * events are dropped once it is deleted, leaving only the delete event.
+ *
+ * Sequence numbers are only meaningful within an epoch. The epoch changes with
+ * every start of the store, at which point the log is seeded with create and
+ * add events for all loaded collections.
+ */
+public class ReplicationLog {
+    public static enum EventType {
+        CREATE, DELETE, ADD, ALIAS
+    }
+
+    public static class Event {
+        public long seq;
+        public EventType type;
+        public String collectionId;
+        public int offset;
+        public int count;
+        /** The added documents, only set on events handed out to replicas. */
+        public VectorDocument[] documents;
+        /** The added aliases, only set on events handed out to replicas. */
+        public VectorAlias[] aliases;
+
+        public Event(long seq, EventType type, String collectionId, int offset, int count) {
+            this.seq = seq;
+            this.type = type;
+            this.collectionId = collectionId;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
+
+    /** Maximum number of documents per add event when seeding the log with loaded collections. */
+    public static int SEED_BATCH_SIZE = 1000;
+
+    final long epoch = new Random().nextLong() & Long.MAX_VALUE;
+    final List<Event> events = new ArrayList<>();
+    long head;
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getHead() {
+        return head;
+    }
+
+    public synchronized void append(EventType type, String collectionId, int offset, int count) {
+        if (type == EventType.DELETE)
+            events.removeIf((event) -> event.collectionId.equals(collectionId));
+        events.add(new Event(++head, type, collectionId, offset, count));
+        notifyAll();
+    }
+
+    /**
+     * Returns the events with a sequence number of at least from, waiting up to
+     * waitMillis for new events if there are none. Stops collecting once the
+     * added documents exceed maxDocuments, but always returns at least one event
+     * if there is one.
+     */
+    public synchronized List<Event> read(long from, long waitMillis, int maxDocuments) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (head < from) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return new ArrayList<>();
+            wait(remaining);
+        }
+
+        int start = 0, end = events.size();
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            if (events.get(mid).seq < from)
+                start = mid + 1;
+            else
+                end = mid;
+        }
+        var result = new ArrayList<Event>();
+        int numDocuments = 0;
+        for (int i = start; i < events.size(); i++) {
+            var event = events.get(i);
+            if (!result.isEmpty() && numDocuments + event.count > maxDocuments)
+                break;
+            result.add(event);
+            numDocuments += event.count;
+        }
+        return result;
+    }
+
+    public static void writeEvents(DataOutputStream out, List<Event> events) throws IOException {
+        out.writeInt(events.size());
+        for (var event : events) {
+            out.writeLong(event.seq);
+            out.writeByte(event.type.ordinal());
+            VectorDocument.writeString(event.collectionId, out);
+            if (event.type == EventType.ADD) {
+                out.writeInt(event.offset);
+                out.writeInt(event.documents.length);
+                for (var doc : event.documents)
+                    VectorDocument.encode(out, doc);
+            } else if (event.type == EventType.ALIAS) {
+                out.writeInt(event.offset);
+                out.writeInt(event.aliases.length);
+                for (var alias : event.aliases)
+                    VectorAlias.encode(out, alias);
+            }
+        }
+    }
+
+    public static List<Event> readEvents(DataInputStream in) throws IOException {
+        int numEvents = in.readInt();
+        var events = new ArrayList<Event>(numEvents);
+        for (int i = 0; i < numEvents; i++) {
+            long seq = in.readLong();
+            var type = EventType.values()[in.readByte()];
+            var collectionId = VectorDocument.readString(in);
+            var event = new Event(seq, type, collectionId, 0, 0);
+            if (type == EventType.ADD) {
+                event.offset = in.readInt();
+                event.count = in.readInt();
+                event.documents = new VectorDocument[event.count];
+                for (int j = 0; j < event.count; j++)
+                    event.documents[j] = VectorDocument.decode(in);
+            } else if (type == EventType.ALIAS) {
+                event.offset = in.readInt();
+                event.count = in.readInt();
+                event.aliases = new VectorAlias[event.count];
+                for (int j = 0; j < event.count; j++)
+                    event.aliases[j] = VectorAlias.decode(in);
+            }
+            events.add(event);
+        }
+        return events;
+    }
+}
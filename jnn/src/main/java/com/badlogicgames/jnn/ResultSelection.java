@@ -0,0 +1,119 @@
+package com.badlogicgames.jnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+
+/**
+ * Post-processing of a ranked candidate set, applied after retrieval and
+ * before anything gets serialized.
+ */
+public class ResultSelection {
+    /** Whether the options require retrieving more candidates than k before selecting the result. */
+    public static boolean needsCandidates(QueryOptions options) {
+        return options.diversify || options.tokenBudget > 0;
+    }
+
+    /**
+     * Rejects options outside their valid range with an
+     * {@link IllegalArgumentException}.
+     */
+    public static void validate(QueryOptions options) {
+        if (!(options.mmrLambda >= 0 && options.mmrLambda <= 1))
+            throw new IllegalArgumentException("mmrLambda must be between 0 and 1");
+    }
+
+    public static int numCandidates(QueryOptions options) {
+        return Math.max(options.k,
+                options.numCandidates > 0 ? options.numCandidates : VectorStore.DEFAULT_NUM_CANDIDATES);
+    }
+
+    /**
+     * Applies diversification and token budget packing as requested by the
+     * options to candidates ranked by score, and cuts the result down to k.
+     */
+    public static VectorStoreSimilarity[] select(VectorStoreSimilarity[] candidates, QueryOptions options) {
+        if (options.diversify)
+            candidates = maximalMarginalRelevance(candidates, options.mmrLambda,
+                    options.tokenBudget > 0 ? candidates.length : options.k);
+        if (options.tokenBudget > 0)
+            candidates = packTokenBudget(candidates, options.tokenBudget, options.k);
+        return candidates.length <= options.k ? candidates : Arrays.copyOf(candidates, options.k);
+    }
+
+    /**
+     * Greedily re-ranks the candidates via maximal marginal relevance. Each step
+     * picks the candidate maximizing {@code lambda * relevance - (1 - lambda) *
+     * redundancy}, where relevance is the candidate's score min-max normalized
+     * over the candidate set, and redundancy is its highest cosine similarity to
+     * an already selected candidate. Expects normalized document vectors.
+     */
+    public static VectorStoreSimilarity[] maximalMarginalRelevance(VectorStoreSimilarity[] candidates, float lambda,
+            int k) {
+        int n = candidates.length;
+        k = Math.min(k, n);
+        if (k <= 0)
+            return new VectorStoreSimilarity[0];
+
+        float minScore = Float.MAX_VALUE, maxScore = -Float.MAX_VALUE;
+        for (var candidate : candidates) {
+            minScore = Math.min(minScore, candidate.score);
+            maxScore = Math.max(maxScore, candidate.score);
+        }
+        float range = maxScore - minScore;
+
+        float[] relevance = new float[n];
+        float[] redundancy = new float[n];
+        boolean[] selected = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            relevance[i] = range > 0 ? (candidates[i].score - minScore) / range : 1;
+            redundancy[i] = -1;
+        }
+
+        var result = new VectorStoreSimilarity[k];
+        for (int j = 0; j < k; j++) {
+            int best = -1;
+            float bestValue = -Float.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (selected[i])
+                    continue;
+                float value = lambda * relevance[i] - (1 - lambda) * Math.max(redundancy[i], 0);
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = i;
+                }
+            }
+            selected[best] = true;
+            result[j] = candidates[best];
+
+            // Only the newest pick can raise a candidate's redundancy.
+            var pickedVector = candidates[best].doc.vector;
+            for (int i = 0; i < n; i++) {
+                if (selected[i])
+                    continue;
+                redundancy[i] = Math.max(redundancy[i], Linalg.dot(candidates[i].doc.vector, 0, pickedVector));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Walks the candidates in order and keeps those that still fit into the token
+     * budget, skipping any that would overflow it, until k results are collected.
+     */
+    public static VectorStoreSimilarity[] packTokenBudget(VectorStoreSimilarity[] candidates, int tokenBudget, int k) {
+        var result = new ArrayList<VectorStoreSimilarity>(Math.min(k, candidates.length));
+        int remaining = tokenBudget;
+        for (var candidate : candidates) {
+            if (result.size() >= k || remaining <= 0)
+                break;
+            if (candidate.doc.tokenCount > remaining)
+                continue;
+            result.add(candidate);
+            remaining -= candidate.doc.tokenCount;
+        }
+        return result.toArray(new VectorStoreSimilarity[result.size()]);
+    }
+}
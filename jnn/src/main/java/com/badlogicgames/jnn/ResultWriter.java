@@ -0,0 +1,225 @@
+package com.badlogicgames.jnn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Streams query and get results as JSON, optionally projected to a subset of
+ * fields. The stored fields of a document never change, so their encoded form
+ * is kept in a size bounded LRU cache and copied verbatim on subsequent hits.
+ * Cached fragments are keyed by the generation of the collection and the
+ * document's position in it, so the cache holds no references to documents,
+ * and are dropped via {@link #invalidate} once the collection is deleted or
+ * evicted.
+ */
+public class ResultWriter {
+    public static final String[] ALL_FIELDS = { "uri", "index", "title", "text", "tokenCount", "distance", "score" };
+
+    /**
+     * Fields to write per document. The (normalized) vector is only written when
+     * explicitly requested, e.g. by a {@link ShardedVectorStore} that diversifies
+     * the merged results of its shards.
+     */
+    public static class Projection {
+        boolean uri, index, title, text, tokenCount, distance, score, vector;
+
+        public static final Projection ALL = new Projection(null);
+
+        public Projection(String[] fields) {
+            if (fields == null)
+                fields = ALL_FIELDS;
+            for (var field : fields) {
+                switch (field) {
+                    case "uri" -> uri = true;
+                    case "index" -> index = true;
+                    case "title" -> title = true;
+                    case "text" -> text = true;
+                    case "tokenCount" -> tokenCount = true;
+                    case "distance" -> distance = true;
+                    case "score" -> score = true;
+                    case "vector" -> vector = true;
+                    default -> throw new IllegalArgumentException("Unknown field " + field);
+                }
+            }
+        }
+
+        boolean allStoredFields() {
+            return uri && index && title && text && tokenCount;
+        }
+    }
+
+    /** Approximate heap usage of a cache entry besides the fragment itself. */
+    static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    static class FragmentKey {
+        final long generation;
+        final int position;
+
+        FragmentKey(long generation, int position) {
+            this.generation = generation;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FragmentKey other))
+                return false;
+            return generation == other.generation && position == other.position;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(generation) * 31 + position;
+        }
+    }
+
+    final JsonFactory factory;
+    final Map<FragmentKey, byte[]> fragments;
+    final long maxCacheBytes;
+    long cacheBytes;
+
+    public ResultWriter(JsonFactory factory, long maxCacheBytes) {
+        this.factory = factory;
+        this.maxCacheBytes = maxCacheBytes;
+        this.fragments = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    public void writeSimilarities(VectorStoreSimilarity[] similarities, Projection projection, OutputStream out)
+            throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(out)) {
+            generator.writeStartArray();
+            for (var similarity : similarities) {
+                writeDocument(generator, out, similarity.doc, similarity.generation, similarity.position,
+                        similarity.similarity, similarity.score, projection);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    public void writeDocuments(List<VectorDocument> docs, Projection projection, OutputStream out) throws IOException {
+        writeDocuments(docs, 0, -1, projection, out);
+    }
+
+    /**
+     * Writes a page of documents starting at the given position of a collection
+     * of the given generation. Fragments are only cached if the offset is known.
+     */
+    public void writeDocuments(List<VectorDocument> docs, long generation, int offset, Projection projection,
+            OutputStream out) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(out)) {
+            generator.writeStartArray();
+            for (int i = 0; i < docs.size(); i++) {
+                writeDocument(generator, out, docs.get(i), generation, offset < 0 ? -1 : offset + i, 0, 0,
+                        projection);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private void writeDocument(JsonGenerator generator, OutputStream out, VectorDocument doc, long generation,
+            int position, float distance, float score, Projection projection) throws IOException {
+        generator.writeStartObject();
+        if (projection.distance)
+            generator.writeNumberField("distance", distance);
+        if (projection.score)
+            generator.writeNumberField("score", score);
+
+        if (projection.allStoredFields() && !projection.vector && maxCacheBytes > 0 && position >= 0) {
+            // The generator doesn't know about the raw bytes, so we have to emit the
+            // separating comma ourselves. Flushing only hands its buffer to the output
+            // stream, as FLUSH_PASSED_TO_STREAM is disabled on the shared factory.
+            var fragment = getFragment(new FragmentKey(generation, position), doc);
+            generator.flush();
+            if (projection.distance || projection.score)
+                out.write(',');
+            out.write(fragment);
+        } else {
+            writeStoredFields(generator, doc, projection);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeStoredFields(JsonGenerator generator, VectorDocument doc, Projection projection)
+            throws IOException {
+        if (projection.uri)
+            generator.writeStringField("uri", doc.uri);
+        if (projection.index)
+            generator.writeNumberField("index", doc.index);
+        if (projection.title)
+            generator.writeStringField("title", doc.title);
+        if (projection.text)
+            generator.writeStringField("text", doc.text);
+        if (projection.tokenCount)
+            generator.writeNumberField("tokenCount", doc.tokenCount);
+        if (projection.vector) {
+            generator.writeArrayFieldStart("vector");
+            for (float v : doc.vector)
+                generator.writeNumber(v);
+            generator.writeEndArray();
+        }
+    }
+
+    private byte[] getFragment(FragmentKey key, VectorDocument doc) throws IOException {
+        synchronized (fragments) {
+            var fragment = fragments.get(key);
+            if (fragment != null)
+                return fragment;
+        }
+
+        var bytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = factory.createGenerator(bytes)) {
+            generator.writeStartObject();
+            writeStoredFields(generator, doc, Projection.ALL);
+            generator.writeEndObject();
+        }
+        // Strip the enclosing braces, the fragment is spliced into an open object.
+        var encoded = bytes.toByteArray();
+        var fragment = new byte[encoded.length - 2];
+        System.arraycopy(encoded, 1, fragment, 0, fragment.length);
+
+        if (fragment.length > maxCacheBytes / 16)
+            return fragment;
+        synchronized (fragments) {
+            var previous = fragments.put(key, fragment);
+            cacheBytes += fragment.length + ENTRY_OVERHEAD_BYTES
+                    - (previous != null ? previous.length + ENTRY_OVERHEAD_BYTES : 0);
+            var iterator = fragments.values().iterator();
+            while (cacheBytes > maxCacheBytes && iterator.hasNext()) {
+                cacheBytes -= iterator.next().length + ENTRY_OVERHEAD_BYTES;
+                iterator.remove();
+            }
+        }
+        return fragment;
+    }
+
+    /**
+     * Drops the cached fragments of a collection generation.
+     */
+    public void invalidate(long generation) {
+        synchronized (fragments) {
+            var iterator = fragments.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (entry.getKey().generation == generation) {
+                    cacheBytes -= entry.getValue().length + ENTRY_OVERHEAD_BYTES;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public long cacheBytes() {
+        synchronized (fragments) {
+            return cacheBytes;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.badlogicgames.jnn;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.ToIntFunction;
+
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
+import com.badlogicgames.jnn.VectorStore.VectorAlias;
+import com.badlogicgames.jnn.VectorStore.VectorCollectionInfo;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+import com.badlogicgames.jnn.VectorStoreServer.AddRequest;
+import com.badlogicgames.jnn.VectorStoreServer.AddResponse;
+import com.badlogicgames.jnn.VectorStoreServer.QueryRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Coordinates a set of JNN nodes, each holding one shard of every collection.
+ * Documents are assigned to shards by the hash of their uri, so all segments of
+ * a page end up on the same shard. Queries are scattered to all shards and their
+ * top-k gathered and merged. Shards that don't answer within the query timeout
+ * are left out of the result rather than failing the query.
+ *
+ * Hybrid scores are fused per shard, so merging them is an approximation of a
+ * single node fusing the full rankings. Lexical scores are approximate as
+ * well, each shard computes BM25 with the document frequencies and average
+ * document length of its own documents. With documents spread evenly by uri
+ * hash these statistics are close across shards, but rare terms may be ranked
+ * differently than on a single node. Diversification and token budget packing
+ * are applied by the coordinator on the merged candidates.
+ *
+ * The tenant and projection of a {@link QueryRequest} are forwarded, so shards
+ * schedule the query fairly and only serialize the fields needed.
+ */
+public class ShardedVectorStore implements VectorStoreBackend {
+    public static class ShardHit extends VectorDocument {
+        public float distance;
+        public float score;
+    }
+
+    final String[] shards;
+    final HttpClient client;
+    final ObjectMapper objectMapper;
+    final Duration queryTimeout;
+    final Duration writeTimeout;
+
+    public ShardedVectorStore(String[] shardUrls, Duration queryTimeout, Duration writeTimeout) {
+        this.shards = new String[shardUrls.length];
+        for (int i = 0; i < shardUrls.length; i++) {
+            var url = shardUrls[i].trim();
+            this.shards[i] = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        }
+        if (shards.length == 0)
+            throw new RuntimeException("No shards given");
+        this.queryTimeout = queryTimeout;
+        this.writeTimeout = writeTimeout;
+        this.objectMapper = VectorStoreServer.objectMapper;
+        this.client = HttpClient.newBuilder().connectTimeout(queryTimeout).version(HttpClient.Version.HTTP_1_1)
+                .build();
+    }
+
+    public int shardOf(VectorDocument doc) {
+        return Math.floorMod(doc.uri.hashCode(), shards.length);
+    }
+
+    @Override
+    public void createCollection(String id) {
+        VectorStore.checkCollectionId(id);
+        var requests = new ArrayList<CompletableFuture<String>>();
+        for (var shard : shards)
+            requests.add(send(get(shard, "/create?id=" + encode(id))));
+        awaitAll(requests);
+    }
+
+    @Override
+    public void deleteCollection(String id) {
+        var requests = new ArrayList<CompletableFuture<String>>();
+        for (var shard : shards)
+            requests.add(send(get(shard, "/delete?id=" + encode(id))));
+        awaitAll(requests);
+    }
+
+    @Override
+    public List<VectorCollectionInfo> getCollections() {
+        var merged = new LinkedHashMap<String, VectorCollectionInfo>();
+        for (var shardCollections : getShardCollections()) {
+            for (var info : shardCollections) {
+                var mergedInfo = merged.computeIfAbsent(info.id, (id) -> new VectorCollectionInfo(id, 0, 0));
+                mergedInfo.numDimensions = Math.max(mergedInfo.numDimensions, info.numDimensions);
+                mergedInfo.numDocuments += info.numDocuments;
+                mergedInfo.numAliases += info.numAliases;
+                mergedInfo.footprintBytes += info.footprintBytes;
+                mergedInfo.loaded |= info.loaded;
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    private List<VectorCollectionInfo[]> getShardCollections() {
+        var requests = new ArrayList<CompletableFuture<String>>();
+        for (var shard : shards)
+            requests.add(send(get(shard, "/collections")));
+        var result = new ArrayList<VectorCollectionInfo[]>();
+        for (var body : awaitAll(requests)) {
+            result.add(parse(body, VectorCollectionInfo[].class));
+        }
+        return result;
+    }
+
+    /**
+     * Near-duplicates are only detected within a shard. Copies usually differ in
+     * their uri and may land on different shards.
+     */
+    @Override
+    public int addDocuments(String id, VectorDocument[] documents, float duplicateThreshold) {
+        if (documents.length == 0)
+            return 0;
+        var perShard = new ArrayList<List<VectorDocument>>();
+        for (int i = 0; i < shards.length; i++)
+            perShard.add(new ArrayList<>());
+        for (var doc : documents)
+            perShard.get(shardOf(doc)).add(doc);
+
+        var requests = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < shards.length; i++) {
+            var docs = perShard.get(i);
+            if (docs.isEmpty())
+                continue;
+            var addRequest = new AddRequest();
+            addRequest.id = id;
+            addRequest.docs = docs.toArray(new VectorDocument[docs.size()]);
+            addRequest.duplicateThreshold = duplicateThreshold;
+            requests.add(send(post(shards[i], "/add", addRequest).timeout(writeTimeout).build()));
+        }
+        int duplicates = 0;
+        for (var body : awaitAll(requests))
+            duplicates += parse(body, AddResponse.class).duplicates;
+        return duplicates;
+    }
+
+    /**
+     * Pages through the concatenation of all shards' documents, in shard order.
+     */
+    @Override
+    public List<VectorDocument> getDocuments(String id, int offset, int limit) {
+        return page(id, offset, limit, "/get", (info) -> info.numDocuments, ShardHit[].class);
+    }
+
+    /**
+     * Pages through the concatenation of all shards' aliases, in shard order.
+     */
+    @Override
+    public List<VectorAlias> getAliases(String id, int offset, int limit) {
+        return page(id, offset, limit, "/aliases", (info) -> info.numAliases, VectorAlias[].class);
+    }
+
+    private <T> List<T> page(String id, int offset, int limit, String path, ToIntFunction<VectorCollectionInfo> count,
+            Class<? extends T[]> type) {
+        var shardCollections = getShardCollections();
+        var result = new ArrayList<T>();
+        int shardStart = 0;
+        for (int i = 0; i < shards.length && result.size() < limit; i++) {
+            int numItems = 0;
+            for (var info : shardCollections.get(i)) {
+                if (info.id.equals(id))
+                    numItems = count.applyAsInt(info);
+            }
+            int shardOffset = offset + result.size() - shardStart;
+            shardStart += numItems;
+            if (shardOffset >= numItems)
+                continue;
+            var body = await(send(get(shards[i], path + "?id=" + encode(id) + "&offset=" + shardOffset + "&limit="
+                    + (limit - result.size()))), writeTimeout);
+            result.addAll(Arrays.asList(parse(body, type)));
+        }
+        return result;
+    }
+
+    @Override
+    public VectorStoreSimilarity[] query(String id, QueryOptions options) {
+        var needsCandidates = ResultSelection.needsCandidates(options);
+        var shardRequest = new QueryRequest();
+        shardRequest.id = id;
+        shardRequest.queryVector = options.queryVector;
+        shardRequest.queryText = options.queryText;
+        shardRequest.mode = options.mode;
+        shardRequest.numCandidates = options.numCandidates;
+        shardRequest.k = needsCandidates ? ResultSelection.numCandidates(options) : options.k;
+        String[] fields = null;
+        if (options instanceof QueryRequest request) {
+            shardRequest.tenant = request.tenant;
+            fields = request.fields;
+        }
+        shardRequest.fields = shardFields(fields, options);
+
+        var requests = new ArrayList<CompletableFuture<String>>();
+        for (var shard : shards)
+            requests.add(send(post(shard, "/query", shardRequest).timeout(queryTimeout).build()));
+
+        var candidates = new ArrayList<VectorStoreSimilarity>();
+        int numFailed = 0;
+        Throwable failure = null;
+        long deadline = System.nanoTime() + queryTimeout.toNanos();
+        for (int i = 0; i < shards.length; i++) {
+            try {
+                var body = requests.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                for (var hit : parse(body, ShardHit[].class))
+                    candidates.add(new VectorStoreSimilarity(hit.distance, hit.score, hit));
+            } catch (TimeoutException | InterruptedException | ExecutionException e) {
+                requests.get(i).cancel(true);
+                numFailed++;
+                failure = e;
+                System.err.println("Shard " + shards[i] + " failed to answer query for collection " + id + ": " + e);
+            }
+        }
+        if (numFailed == shards.length)
+            throw new RuntimeException("No shard answered query for collection " + id, failure);
+
+        var result = candidates.toArray(new VectorStoreSimilarity[candidates.size()]);
+        Arrays.sort(result, (o1, o2) -> Float.compare(o2.score, o1.score));
+        if (needsCandidates)
+            return ResultSelection.select(result, options);
+        return result.length <= options.k ? result : Arrays.copyOf(result, options.k);
+    }
+
+    /**
+     * Fields to request from the shards, the requested ones plus those needed to
+     * merge and select the candidates.
+     */
+    static String[] shardFields(String[] fields, QueryOptions options) {
+        var result = new LinkedHashSet<String>(Arrays.asList(fields != null ? fields : ResultWriter.ALL_FIELDS));
+        result.add("score");
+        if (options.tokenBudget > 0)
+            result.add("tokenCount");
+        if (options.diversify)
+            result.add("vector");
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private HttpRequest get(String shard, String path) {
+        return HttpRequest.newBuilder(URI.create(shard + path)).timeout(writeTimeout).GET().build();
+    }
+
+    private HttpRequest.Builder post(String shard, String path, Object body) {
+        try {
+            return HttpRequest.newBuilder(URI.create(shard + path))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)));
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private CompletableFuture<String> send(HttpRequest request) {
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply((response) -> {
+            if (response.statusCode() != 200)
+                throw new RuntimeException(
+                        request.method() + " " + request.uri() + " failed: " + response.statusCode() + " "
+                                + response.body());
+            return response.body();
+        });
+    }
+
+    private static String await(CompletableFuture<String> request, Duration timeout) {
+        try {
+            return request.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        } catch (Throwable t) {
+            request.cancel(true);
+            throw new RuntimeException(t);
+        }
+    }
+
+    private List<String> awaitAll(List<CompletableFuture<String>> requests) {
+        var result = new ArrayList<String>(requests.size());
+        for (var request : requests)
+            result.add(await(request, writeTimeout));
+        return result;
+    }
+
+    private <T> T parse(String body, Class<T> type) {
+        try {
+            return objectMapper.readValue(body, type);
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+}
@@ -1,36 +1,92 @@
 package com.badlogicgames.jnn;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.regex.Pattern;
 
+import com.badlogicgames.jnn.Bm25Index.Bm25Score;
+import com.badlogicgames.jnn.ReplicationLog.Event;
+import com.badlogicgames.jnn.ReplicationLog.EventType;
 import com.badlogicgames.jnn.engines.NearestNeighbourEngine;
 import com.badlogicgames.jnn.engines.NearestNeighbourEngine.EngineSimilarity;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
-public class VectorStore {
+public class VectorStore implements VectorStoreBackend {
+    /** Suffix of collection files in the old single file format, migrated on startup. */
     public static String FILE_SUFFIX = ".vsb";
+    /** Suffix of the temporary directory a legacy file is migrated into, never a valid collection id. */
+    public static final String MIGRATION_SUFFIX = ".migrating";
 
     public static interface NearestNeighbourEngineProvider {
         NearestNeighbourEngine provide(int numDimensions);
+
+        /**
+         * Provides an engine for the given vectors with its index restored from data
+         * previously written by {@link NearestNeighbourEngine#writeIndex}. Returns
+         * null if the data was written in another format or can't be used, in which
+         * case the caller builds a new engine.
+         */
+        default NearestNeighbourEngine restore(int numDimensions, float[][] vectors, String indexFormat,
+                DataInputStream in) throws IOException {
+            var engine = provide(numDimensions);
+            if (!indexFormat.equals(engine.indexFormat()) || !engine.readIndex(in, vectors))
+                return null;
+            return engine;
+        }
     }
 
     public static class VectorCollection {
+        /** Changes whenever a collection is created or loaded, so stale cached results can be told apart. */
+        final long generation = nextGeneration.incrementAndGet();
         String id;
         int numDimensions;
         List<VectorDocument> documents = new ArrayList<>();
         NearestNeighbourEngine engine;
+        Bm25Index lexicalIndex = new Bm25Index();
+        List<VectorAlias> aliases = new ArrayList<>();
+        /** Built on the first add with a duplicate threshold, then kept up to date. */
+        DuplicateIndex duplicateIndex;
+        CollectionStorage storage;
+        boolean indexWriteScheduled;
+        /** Estimated heap usage of the documents, aliases, engine and indexes. */
+        long footprintBytes;
+        /** Estimated heap usage of the documents and aliases alone. */
+        long documentBytes;
+        /** Value of the store's access clock when the collection was last read. */
+        long lastAccess;
+        /** Set on evicted collections while their documents are being read back. */
+        CompletableFuture<VectorCollection> loading;
+        /** Number of writes in progress, collections aren't evicted while being written to. */
+        int writers;
+        /** Set once the collection has been removed from the store. */
+        boolean deleted;
+        /** Counts of an evicted collection, so listing it doesn't wait for its storage. */
+        int numEvictedDocuments;
+        int numEvictedAliases;
 
         public VectorCollection(String id) {
             this(id, 0, null);
@@ -41,12 +97,31 @@ public class VectorStore {
             this.numDimensions = numDimensions;
             this.engine = engine;
         }
+
+        /** Evicted collections only keep their storage, documents, aliases, engine and indexes are null. */
+        boolean isLoaded() {
+            return documents != null;
+        }
+
+        int numDocuments() {
+            return isLoaded() ? documents.size() : numEvictedDocuments;
+        }
+
+        int numAliases() {
+            return isLoaded() ? aliases.size() : numEvictedAliases;
+        }
     }
 
     public static class VectorCollectionInfo {
         public String id;
         public int numDimensions;
         public int numDocuments;
+        /** Number of near-duplicates collapsed into the collection's documents, see {@link VectorAlias}. */
+        public int numAliases;
+        /** Estimated heap usage in bytes, 0 if the collection is evicted. */
+        public long footprintBytes;
+        /** Whether the collection is in memory, evicted collections are loaded on their next query. */
+        public boolean loaded;
 
         public VectorCollectionInfo() {
         }
@@ -116,46 +191,169 @@ public class VectorStore {
 
     }
 
+    /**
+     * A document that was dropped when it was added, because it is a near-duplicate
+     * of the canonical document, e.g. a quoted reply or a boilerplate page.
+     */
+    public static class VectorAlias {
+        public String uri;
+        public int index;
+        public String title;
+        public String canonicalUri;
+        public int canonicalIndex;
+        /** Cosine similarity to the canonical document. */
+        public float similarity;
+
+        public static void encode(DataOutputStream out, VectorAlias alias) {
+            try {
+                VectorDocument.writeString(alias.uri, out);
+                out.writeInt(alias.index);
+                VectorDocument.writeString(alias.title, out);
+                VectorDocument.writeString(alias.canonicalUri, out);
+                out.writeInt(alias.canonicalIndex);
+                out.writeFloat(alias.similarity);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        public static VectorAlias decode(DataInputStream in) {
+            try {
+                var alias = new VectorAlias();
+                alias.uri = VectorDocument.readString(in);
+                alias.index = in.readInt();
+                alias.title = VectorDocument.readString(in);
+                alias.canonicalUri = VectorDocument.readString(in);
+                alias.canonicalIndex = in.readInt();
+                alias.similarity = in.readFloat();
+                return alias;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
     public static class VectorStoreSimilarity {
         public float similarity;
+        public float score;
         public VectorDocument doc;
+        /**
+         * Generation of the collection and position of the document in it, used to
+         * cache the document's encoded form. Position is -1 if unknown, e.g. for
+         * results merged from shards.
+         */
+        public long generation;
+        public int position = -1;
 
         public VectorStoreSimilarity(float similarity, VectorDocument doc) {
+            this(similarity, similarity, doc);
+        }
+
+        public VectorStoreSimilarity(float similarity, float score, VectorDocument doc) {
             this.similarity = similarity;
+            this.score = score;
             this.doc = doc;
         }
     }
 
+    public static enum QueryMode {
+        /** Cosine similarity against the query vector only. */
+        @JsonProperty("vector")
+        VECTOR,
+        /** BM25 over the segment text only. */
+        @JsonProperty("lexical")
+        LEXICAL,
+        /** Reciprocal rank fusion of the vector and BM25 rankings. */
+        @JsonProperty("hybrid")
+        HYBRID
+    }
+
+    public static class QueryOptions {
+        public float[] queryVector;
+        public String queryText;
+        public int k;
+        public QueryMode mode = QueryMode.VECTOR;
+        /**
+         * Number of candidates each ranking contributes before fusion, diversification
+         * or packing, defaults to {@link VectorStore#DEFAULT_NUM_CANDIDATES} or k,
+         * whichever is larger.
+         */
+        public int numCandidates;
+        /** Re-rank the candidates via maximal marginal relevance. */
+        public boolean diversify;
+        /** Trade-off between relevance (1) and diversity (0) when diversifying. */
+        public float mmrLambda = 0.7f;
+        /** Maximum sum of token counts of the returned documents, 0 for no limit. */
+        public int tokenBudget;
+    }
+
+    public static int DEFAULT_NUM_CANDIDATES = 100;
+    public static int RRF_K = 60;
+
+    static final AtomicLong nextGeneration = new AtomicLong();
+    static final Pattern COLLECTION_ID = Pattern.compile("[A-Za-z0-9_-]+");
+
     Map<String, VectorCollection> collections = new HashMap<>();
+    /** Called with the generation of collections that were deleted or evicted. */
+    LongConsumer droppedListener;
     File dataDir;
+    /**
+     * Total estimated heap usage of loaded collections above which the least
+     * recently queried ones get evicted, 0 for no limit.
+     */
+    long memoryBudgetBytes;
+    long accessClock;
     NearestNeighbourEngineProvider engineProvider;
+    ReplicationLog replicationLog = new ReplicationLog();
+    /** Delay before a changed collection's index is written, so consecutive adds only cause one write. */
+    public static long INDEX_WRITE_DELAY_MILLIS = 30000;
+
+    ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
     public VectorStore(String dataDirPath, NearestNeighbourEngineProvider engineProvider) {
+        this(dataDirPath, engineProvider, 0);
+    }
+
+    /**
+     * Creates a store that keeps the estimated heap usage of its collections below
+     * the given budget by evicting the least recently queried ones down to their
+     * on-disk form. Evicted collections are loaded again on their next use.
+     */
+    public VectorStore(String dataDirPath, NearestNeighbourEngineProvider engineProvider, long memoryBudgetBytes) {
         this.dataDir = new File(dataDirPath);
         this.engineProvider = engineProvider;
+        this.memoryBudgetBytes = memoryBudgetBytes;
         if (dataDir.exists()) {
-            var files = dataDir.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(FILE_SUFFIX);
-                }
-            });
-            for (var file : files) {
-                var id = file.getName().substring(0, file.getName().length() - FILE_SUFFIX.length());
+            migrateLegacyFiles();
+            for (var dir : dataDir.listFiles(File::isDirectory)) {
+                if (!CollectionStorage.exists(dir) || dir.getName().endsWith(MIGRATION_SUFFIX))
+                    continue;
+                var id = dir.getName();
                 System.out.println("Loading collection " + id);
                 try {
-                    var docs = loadDocuments(id);
-                    var numDimensions = docs.get(0).vector.length;
-                    var collection = new VectorCollection(id, numDimensions, engineProvider.provide(numDimensions));
-                    collection.documents = docs;
-                    float[][] vectors = new float[docs.size()][];
-                    for (int i = 0; i < docs.size(); i++) {
-                        vectors[i] = docs.get(i).vector;
-                    }
-                    collection.engine.addVectors(vectors);
+                    var collection = loadCollection(id);
+                    collection.lastAccess = ++accessClock;
                     collections.put(id, collection);
+                    var numDocuments = collection.numDocuments();
+                    replicationLog.append(EventType.CREATE, id, 0, 0);
+                    for (int i = 0; i < numDocuments; i += ReplicationLog.SEED_BATCH_SIZE)
+                        replicationLog.append(EventType.ADD, id, i,
+                                Math.min(ReplicationLog.SEED_BATCH_SIZE, numDocuments - i));
+                    var numAliases = collection.numAliases();
+                    for (int i = 0; i < numAliases; i += ReplicationLog.SEED_BATCH_SIZE)
+                        replicationLog.append(EventType.ALIAS, id, i,
+                                Math.min(ReplicationLog.SEED_BATCH_SIZE, numAliases - i));
+                    scheduleCompaction(collection);
+                    evictColdCollections(collection);
                 } catch (Throwable t) {
-                    System.err.println("Could not load file for collection " + id);
+                    System.err.println("Could not load collection " + id);
+                    t.printStackTrace();
                 }
             }
             System.out.println("Loading complete");
@@ -165,91 +363,640 @@ public class VectorStore {
         }
     }
 
-    private synchronized void saveDocuments(String id, VectorDocument[] documents) {
-        File file = new File(dataDir, id + FILE_SUFFIX);
-        long start = System.nanoTime();
-        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
-            for (VectorDocument doc : documents) {
-                VectorDocument.encode(out, doc);
+    static class IndexState {
+        Bm25Index lexicalIndex;
+        NearestNeighbourEngine engine;
+    }
+
+    private VectorCollection loadCollection(String id) {
+        var docs = new ArrayList<VectorDocument>();
+        var storage = CollectionStorage.open(new File(dataDir, id), docs);
+        return restoreCollection(id, storage, docs);
+    }
+
+    private VectorCollection restoreCollection(String id, CollectionStorage storage, List<VectorDocument> docs) {
+        if (docs.isEmpty()) {
+            var collection = new VectorCollection(id);
+            collection.storage = storage;
+            storage.readAliases(collection.aliases);
+            return collection;
+        }
+
+        var numDimensions = docs.get(0).vector.length;
+        float[][] vectors = new float[docs.size()][];
+        for (int i = 0; i < docs.size(); i++) {
+            vectors[i] = docs.get(i).vector;
+        }
+        var index = storage.readIndex(storage.generation(), (in) -> {
+            var state = new IndexState();
+            state.lexicalIndex = Bm25Index.read(in);
+            var format = VectorDocument.readString(in);
+            if (!format.isEmpty())
+                state.engine = engineProvider.restore(numDimensions, vectors, format, in);
+            return state;
+        });
+
+        var collection = new VectorCollection(id, numDimensions, index != null ? index.engine : null);
+        collection.storage = storage;
+        collection.documents = docs;
+        if (collection.engine == null) {
+            collection.engine = engineProvider.provide(numDimensions);
+            collection.engine.addVectors(vectors);
+        }
+        if (index != null) {
+            collection.lexicalIndex = index.lexicalIndex;
+        } else {
+            collection.lexicalIndex.addDocuments(texts(docs));
+        }
+        storage.readAliases(collection.aliases);
+        for (var doc : docs)
+            collection.documentBytes += documentBytes(doc);
+        for (var alias : collection.aliases)
+            collection.documentBytes += aliasBytes(alias);
+        updateFootprint(collection);
+        // Rewrite a missing or stale index, or one the engine couldn't use.
+        if (index == null || (index.engine == null && collection.engine.indexFormat() != null))
+            scheduleIndexWrite(collection);
+        return collection;
+    }
+
+    /**
+     * Returns the loaded collection with the given id, reading an evicted
+     * collection back from disk first. Concurrent callers share a single load.
+     */
+    private VectorCollection acquire(String id) {
+        VectorCollection evicted;
+        CompletableFuture<VectorCollection> loading;
+        boolean load = false;
+        synchronized (this) {
+            var collection = collections.get(id);
+            if (collection == null)
+                throw new RuntimeException("No collection with id " + id);
+            collection.lastAccess = ++accessClock;
+            if (collection.isLoaded())
+                return collection;
+            if (collection.loading == null) {
+                collection.loading = new CompletableFuture<>();
+                load = true;
             }
-        } catch (Throwable e) {
-            throw new RuntimeException(e);
-        } finally {
-            System.out.println("Saving collection " + id + " took: " + (System.nanoTime() - start) / 1e9f + " secs");
+            evicted = collection;
+            loading = collection.loading;
+        }
+
+        if (load) {
+            try {
+                long start = System.nanoTime();
+                var docs = new ArrayList<VectorDocument>();
+                evicted.storage.readDocuments(docs);
+                var collection = restoreCollection(id, evicted.storage, docs);
+                boolean replaced = false;
+                synchronized (this) {
+                    if (collections.get(id) == evicted) {
+                        collection.lastAccess = ++accessClock;
+                        collections.put(id, collection);
+                        replaced = true;
+                    }
+                }
+                if (replaced) {
+                    collectionDropped(evicted);
+                    evictColdCollections(collection);
+                }
+                System.out.println("Loading evicted collection " + id + " took: " + (System.nanoTime() - start) / 1e9f
+                        + " secs");
+                loading.complete(collection);
+            } catch (Throwable t) {
+                synchronized (this) {
+                    evicted.loading = null;
+                }
+                loading.completeExceptionally(t);
+            }
+        }
+        try {
+            return loading.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Could not load collection " + id, e.getCause());
         }
     }
 
-    private synchronized List<VectorDocument> loadDocuments(String id) {
-        List<VectorDocument> documents = new ArrayList<>();
-        File file = new File(dataDir, id + FILE_SUFFIX);
+    /**
+     * Evicts the least recently used collections other than the given one until
+     * the loaded collections fit the memory budget. Pending index writes are done
+     * right after, outside the store's lock, so the evicted collections load
+     * without rebuilding their indexes.
+     */
+    private void evictColdCollections(VectorCollection keep) {
+        if (memoryBudgetBytes <= 0)
+            return;
+        var evicted = new ArrayList<VectorCollection>();
+        synchronized (this) {
+            long total = 0;
+            for (var collection : collections.values())
+                total += collection.footprintBytes;
+            while (total > memoryBudgetBytes) {
+                VectorCollection coldest = null;
+                for (var collection : collections.values()) {
+                    if (collection == keep || !collection.isLoaded() || collection.documents.isEmpty()
+                            || collection.writers > 0)
+                        continue;
+                    if (coldest == null || collection.lastAccess < coldest.lastAccess)
+                        coldest = collection;
+                }
+                if (coldest == null)
+                    break;
+                System.out.println("Evicting collection " + coldest.id + " (" + coldest.footprintBytes / 1024
+                        + " KB)");
+                var stub = new VectorCollection(coldest.id, coldest.numDimensions, null);
+                stub.storage = coldest.storage;
+                stub.documents = null;
+                stub.aliases = null;
+                stub.lexicalIndex = null;
+                stub.lastAccess = coldest.lastAccess;
+                // Writers register under the store's lock and there are none, so the counts are stable.
+                stub.numEvictedDocuments = coldest.documents.size();
+                stub.numEvictedAliases = coldest.aliases.size();
+                collections.put(coldest.id, stub);
+                evicted.add(coldest);
+                total -= coldest.footprintBytes;
+            }
+        }
+        for (var collection : evicted) {
+            collectionDropped(collection);
+            writeIndex(collection);
+        }
+    }
+
+    /**
+     * Sets the listener notified with the generation of deleted and evicted
+     * collections, e.g. to drop cached results of their documents.
+     */
+    public synchronized void setDroppedListener(LongConsumer droppedListener) {
+        this.droppedListener = droppedListener;
+    }
+
+    /**
+     * Returns the generation of the collection, see {@link VectorStoreSimilarity#generation}.
+     */
+    public synchronized long getGeneration(String id) {
+        var collection = collections.get(id);
+        if (collection == null)
+            throw new RuntimeException("No collection with id " + id);
+        return collection.generation;
+    }
+
+    private void collectionDropped(VectorCollection collection) {
+        if (droppedListener != null)
+            droppedListener.accept(collection.generation);
+    }
+
+    private static void updateFootprint(VectorCollection collection) {
+        collection.footprintBytes = collection.documentBytes + collection.lexicalIndex.memoryUsage()
+                + (collection.engine != null ? collection.engine.memoryUsage() : 0)
+                + (collection.duplicateIndex != null ? collection.duplicateIndex.memoryUsage() : 0);
+    }
+
+    /**
+     * Estimated heap usage of a document, its strings are assumed to be Latin-1.
+     */
+    private static long documentBytes(VectorDocument doc) {
+        return 64 + 16 + doc.vector.length * 4L + 3 * 40 + doc.uri.length() + doc.title.length() + doc.text.length();
+    }
+
+    private static long aliasBytes(VectorAlias alias) {
+        return 48 + 3 * 40 + alias.uri.length() + alias.title.length() + alias.canonicalUri.length();
+    }
 
-        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-            while (in.available() > 0) {
-                VectorDocument doc = VectorDocument.decode(in);
-                documents.add(doc);
+    /**
+     * Writes the collection's lexical index and engine index once the write delay
+     * passed, unless a write is already pending.
+     */
+    private void scheduleIndexWrite(VectorCollection collection) {
+        synchronized (collection) {
+            if (collection.indexWriteScheduled)
+                return;
+            collection.indexWriteScheduled = true;
+        }
+        background.schedule(() -> {
+            try {
+                writeIndex(collection);
+            } catch (Throwable t) {
+                t.printStackTrace();
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to load documents", e);
+        }, INDEX_WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Does a pending index write. Only holds the collection's lock, so queries and
+     * writes of other collections aren't blocked by the I/O.
+     */
+    private void writeIndex(VectorCollection collection) {
+        synchronized (collection) {
+            if (!collection.indexWriteScheduled)
+                return;
+            collection.indexWriteScheduled = false;
+            if (collection.deleted || collection.engine == null)
+                return;
+            var engine = collection.engine;
+            // Appends hold the collection's lock too, so the generation matches the documents.
+            collection.storage.writeIndex(collection.storage.generation(), (out) -> {
+                collection.lexicalIndex.write(out);
+                var format = engine.indexFormat();
+                VectorDocument.writeString(format != null ? format : "", out);
+                if (format != null)
+                    engine.writeIndex(out);
+            });
         }
+    }
 
-        return documents;
+    /**
+     * Converts collections stored in the old single file format to segmented
+     * storage. Reading stops at a torn trailing record instead of failing. The
+     * collection is written to a temporary directory and renamed into place
+     * before the legacy file is deleted, so a directory next to a legacy file is
+     * left over from an interrupted migration and is migrated again.
+     */
+    private void migrateLegacyFiles() {
+        for (var dir : dataDir.listFiles((dir, name) -> name.endsWith(MIGRATION_SUFFIX)))
+            deleteDirectory(dir);
+        var files = dataDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FILE_SUFFIX);
+            }
+        });
+        for (var file : files) {
+            var id = file.getName().substring(0, file.getName().length() - FILE_SUFFIX.length());
+            System.out.println("Migrating collection " + id + " to segmented storage");
+            var documents = new ArrayList<VectorDocument>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (in.available() > 0) {
+                    documents.add(VectorDocument.decode(in));
+                }
+            } catch (Throwable t) {
+                System.err.println("Dropping torn record at the end of " + file.getAbsolutePath() + " after "
+                        + documents.size() + " documents");
+            }
+            var dir = new File(dataDir, id);
+            var tempDir = new File(dataDir, id + MIGRATION_SUFFIX);
+            try {
+                var storage = CollectionStorage.create(tempDir);
+                if (!documents.isEmpty())
+                    storage.append(documents.toArray(new VectorDocument[documents.size()]));
+                if (dir.exists()) {
+                    System.out.println("Redoing interrupted migration of collection " + id);
+                    if (!deleteDirectory(dir))
+                        throw new RuntimeException("Could not delete " + dir.getAbsolutePath());
+                }
+                Files.move(tempDir.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                if (!file.delete())
+                    throw new RuntimeException("Could not delete " + file.getAbsolutePath());
+            } catch (Throwable t) {
+                System.err.println("Could not migrate collection " + id);
+                t.printStackTrace();
+                deleteDirectory(tempDir);
+            }
+        }
+    }
+
+    private static boolean deleteDirectory(File dir) {
+        var files = dir.listFiles();
+        if (files != null) {
+            for (var file : files)
+                file.delete();
+        }
+        return !dir.exists() || dir.delete();
     }
 
+    private void saveDocuments(VectorCollection collection, VectorDocument[] documents) {
+        long start = System.nanoTime();
+        try {
+            collection.storage.append(documents);
+        } finally {
+            System.out.println("Saving collection " + collection.id + " took: " + (System.nanoTime() - start) / 1e9f
+                    + " secs");
+        }
+        scheduleCompaction(collection);
+    }
+
+    private void scheduleCompaction(VectorCollection collection) {
+        var storage = collection.storage;
+        if (!storage.needsCompaction())
+            return;
+        background.submit(() -> {
+            try {
+                while (storage.needsCompaction())
+                    storage.compact();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        });
+    }
+
+    @Override
     public synchronized void createCollection(String id) {
+        checkCollectionId(id);
         if (collections.containsKey(id))
             return;
-        collections.put(id, new VectorCollection(id));
+        var collection = new VectorCollection(id);
+        collection.storage = CollectionStorage.create(new File(dataDir, id));
+        collections.put(id, collection);
+        replicationLog.append(EventType.CREATE, id, 0, 0);
     }
 
-    public synchronized void deleteCollection(String id) {
-        if (collections.containsKey(id)) {
-            collections.remove(id);
-            var file = new File(dataDir, id + FILE_SUFFIX);
-            if (file.exists()) {
-                if (!file.delete())
-                    throw new RuntimeException("Could not delete collection file " + file.getAbsolutePath());
-            }
+    /**
+     * Collection ids name directories in the data directory, so only letters,
+     * digits, underscores and dashes are allowed.
+     */
+    public static void checkCollectionId(String id) {
+        if (id == null || !COLLECTION_ID.matcher(id).matches())
+            throw new IllegalArgumentException("Invalid collection id, only A-Z, a-z, 0-9, _ and - are allowed");
+    }
+
+    @Override
+    public void deleteCollection(String id) {
+        VectorCollection collection;
+        synchronized (this) {
+            collection = collections.remove(id);
+            if (collection == null)
+                return;
+            collection.deleted = true;
+        }
+        collectionDropped(collection);
+        // Waits for writes in progress, their events have to precede the delete in the log.
+        synchronized (collection) {
+            collection.storage.delete();
+            replicationLog.append(EventType.DELETE, id, 0, 0);
         }
     }
 
+    @Override
     public synchronized List<VectorCollectionInfo> getCollections() {
         var result = new ArrayList<VectorCollectionInfo>();
         for (var key : this.collections.keySet()) {
             var collection = this.collections.get(key);
-            result.add(new VectorCollectionInfo(key, collection.numDimensions, collection.documents.size()));
+            var info = new VectorCollectionInfo(key, collection.numDimensions, collection.numDocuments());
+            info.numAliases = collection.numAliases();
+            info.footprintBytes = collection.footprintBytes;
+            info.loaded = collection.isLoaded();
+            result.add(info);
         }
         return result;
     }
 
-    public synchronized void addDocuments(String id, VectorDocument[] documents) {
+    /**
+     * Adds the documents to the collection. If the duplicate threshold is above 0,
+     * documents whose cosine similarity to a document already in the collection,
+     * or added earlier in the same call, is at least the threshold are not added.
+     * They are recorded as aliases of that canonical document instead. Returns
+     * the number of documents collapsed that way.
+     */
+    @Override
+    public int addDocuments(String id, VectorDocument[] documents, float duplicateThreshold) {
         if (documents.length == 0)
-            return;
-        VectorCollection collection = collections.get(id);
-        if (collection == null)
-            throw new RuntimeException("No collection with id " + id);
-        if (collection.numDimensions == 0) {
-            collection.numDimensions = documents[0].vector.length;
-            collection.engine = engineProvider.provide(collection.numDimensions);
+            return 0;
+        return write(id, (collection) -> addDocuments(collection, documents, duplicateThreshold));
+    }
+
+    /**
+     * Runs the writer with the loaded collection's lock held. The store's lock is
+     * only taken briefly, so writing segments and indexes doesn't stall queries
+     * and writes of other collections. The collection isn't evicted meanwhile.
+     */
+    private <T> T write(String id, Function<VectorCollection, T> writer) {
+        while (true) {
+            var collection = acquire(id);
+            synchronized (this) {
+                // Evicted again before we got the lock, load it once more.
+                if (collections.get(id) != collection)
+                    continue;
+                collection.writers++;
+            }
+            try {
+                synchronized (collection) {
+                    if (collection.deleted)
+                        throw new RuntimeException("No collection with id " + id);
+                    return writer.apply(collection);
+                }
+            } finally {
+                synchronized (this) {
+                    collection.writers--;
+                }
+                evictColdCollections(collection);
+            }
         }
+    }
+
+    /**
+     * Documents are written to storage before they become visible in memory and
+     * the replication log, a failed write leaves the collection as it was.
+     */
+    private int addDocuments(VectorCollection collection, VectorDocument[] documents, float duplicateThreshold) {
+        int numDimensions = collection.numDimensions != 0 ? collection.numDimensions : documents[0].vector.length;
         for (VectorDocument doc : documents) {
-            if (doc.vector.length != collection.numDimensions)
-                throw new RuntimeException("Invalid vector length. Expected: " + collection.numDimensions + ", actual: "
+            if (doc.vector.length != numDimensions)
+                throw new RuntimeException("Invalid vector length. Expected: " + numDimensions + ", actual: "
                         + doc.vector.length + ", uri: " + doc.uri + ", index: " + doc.index);
+        }
+        for (VectorDocument doc : documents)
             Linalg.norm(doc.vector, 0, doc.vector.length);
-            collection.documents.add(doc);
+        if (duplicateThreshold > 0 && collection.duplicateIndex == null)
+            buildDuplicateIndex(collection, numDimensions, documents);
+
+        var duplicateIndex = collection.duplicateIndex;
+        var added = new ArrayList<VectorDocument>(documents.length);
+        var aliases = new ArrayList<VectorAlias>();
+        int offset = collection.documents.size();
+        // The collection's documents followed by those added so far, positions as in the duplicate index.
+        var candidates = new AbstractList<VectorDocument>() {
+            @Override
+            public VectorDocument get(int index) {
+                return index < offset ? collection.documents.get(index) : added.get(index - offset);
+            }
+
+            @Override
+            public int size() {
+                return offset + added.size();
+            }
+        };
+        for (VectorDocument doc : documents) {
+            if (duplicateIndex != null) {
+                var keys = duplicateIndex.keys(doc.vector);
+                if (duplicateThreshold > 0) {
+                    int duplicate = duplicateIndex.findDuplicate(doc.vector, keys, candidates, duplicateThreshold);
+                    if (duplicate >= 0) {
+                        aliases.add(alias(doc, candidates.get(duplicate)));
+                        continue;
+                    }
+                }
+                duplicateIndex.add(candidates.size(), keys);
+            }
+            added.add(doc);
         }
-        float[][] vectors = new float[documents.length][];
-        for (int i = 0; i < documents.length; i++) {
-            vectors[i] = documents[i].vector;
+
+        if (!added.isEmpty()) {
+            try {
+                saveDocuments(collection, added.toArray(new VectorDocument[added.size()]));
+            } catch (Throwable t) {
+                if (duplicateIndex != null)
+                    duplicateIndex.truncate(offset);
+                throw t;
+            }
+            if (collection.engine == null) {
+                collection.numDimensions = numDimensions;
+                collection.engine = engineProvider.provide(numDimensions);
+            }
+            float[][] vectors = new float[added.size()][];
+            for (int i = 0; i < vectors.length; i++) {
+                vectors[i] = added.get(i).vector;
+                collection.documentBytes += documentBytes(added.get(i));
+            }
+            collection.documents.addAll(added);
+            collection.engine.addVectors(vectors);
+            collection.lexicalIndex.addDocuments(texts(added));
+            scheduleIndexWrite(collection);
+            replicationLog.append(EventType.ADD, collection.id, offset, added.size());
+        }
+        if (!aliases.isEmpty())
+            addAliases(collection, aliases.toArray(new VectorAlias[aliases.size()]));
+        updateFootprint(collection);
+        return aliases.size();
+    }
+
+    private static VectorAlias alias(VectorDocument doc, VectorDocument canonical) {
+        var alias = new VectorAlias();
+        alias.uri = doc.uri;
+        alias.index = doc.index;
+        alias.title = doc.title;
+        alias.canonicalUri = canonical.uri;
+        alias.canonicalIndex = canonical.index;
+        alias.similarity = Linalg.dot(doc.vector, 0, canonical.vector);
+        return alias;
+    }
+
+    /**
+     * Builds the duplicate index of the collection's documents, centered on them,
+     * or on the documents about to be added if there are none yet.
+     */
+    private static void buildDuplicateIndex(VectorCollection collection, int numDimensions,
+            VectorDocument[] documents) {
+        long start = System.nanoTime();
+        var sample = collection.documents.isEmpty() ? List.of(documents) : collection.documents;
+        var duplicateIndex = new DuplicateIndex(numDimensions, sample);
+        for (int i = 0; i < collection.documents.size(); i++)
+            duplicateIndex.add(i, duplicateIndex.keys(collection.documents.get(i).vector));
+        collection.duplicateIndex = duplicateIndex;
+        System.out.println("Building duplicate index of collection " + collection.id + " took: "
+                + (System.nanoTime() - start) / 1e9f + " secs");
+    }
+
+    /**
+     * Appends aliases recorded by another store, used by replicas. Aliases
+     * reference their canonical documents by uri and index, so they aren't checked.
+     */
+    public void addAliases(String id, VectorAlias[] aliases) {
+        if (aliases.length == 0)
+            return;
+        write(id, (collection) -> {
+            addAliases(collection, aliases);
+            updateFootprint(collection);
+            return null;
+        });
+    }
+
+    private void addAliases(VectorCollection collection, VectorAlias[] aliases) {
+        int offset = collection.aliases.size();
+        collection.storage.appendAliases(aliases);
+        for (var alias : aliases) {
+            collection.aliases.add(alias);
+            collection.documentBytes += aliasBytes(alias);
         }
-        collection.engine.addVectors(vectors);
-        saveDocuments(id, documents);
+        replicationLog.append(EventType.ALIAS, collection.id, offset, aliases.length);
     }
 
+    @Override
+    public List<VectorAlias> getAliases(String id, int offset, int limit) {
+        VectorCollection collection = acquire(id);
+        synchronized (collection) {
+            var aliases = collection.aliases;
+            if (offset < 0 || offset >= aliases.size())
+                return new ArrayList<>();
+            return new ArrayList<>(aliases.subList(offset, Math.min(offset + limit, aliases.size())));
+        }
+    }
+
+    public ReplicationLog getReplicationLog() {
+        return replicationLog;
+    }
+
+    /**
+     * Reads events from the replication log, see {@link ReplicationLog#read},
+     * and attaches the documents of add events and the aliases of alias events.
+     * Evicted collections aren't loaded nor counted as accessed, their documents
+     * and aliases are read from storage. Events of collections that have since
+     * been deleted come without documents or aliases, the delete follows.
+     */
+    public List<Event> readReplicationEvents(long from, long waitMillis, int maxDocuments) throws InterruptedException {
+        var events = replicationLog.read(from, waitMillis, maxDocuments);
+        var result = new ArrayList<Event>(events.size());
+        for (var event : events) {
+            var copy = new Event(event.seq, event.type, event.collectionId, event.offset, event.count);
+            if (event.type == EventType.ADD)
+                copy.documents = new VectorDocument[0];
+            else if (event.type == EventType.ALIAS)
+                copy.aliases = new VectorAlias[0];
+            if (event.type == EventType.ADD || event.type == EventType.ALIAS) {
+                VectorCollection collection;
+                synchronized (this) {
+                    collection = collections.get(event.collectionId);
+                }
+                if (collection != null) {
+                    try {
+                        readEvent(collection, copy);
+                    } catch (Throwable t) {
+                        // Deleted in the meantime.
+                    }
+                }
+            }
+            result.add(copy);
+        }
+        return result;
+    }
+
+    private void readEvent(VectorCollection collection, Event event) {
+        synchronized (collection) {
+            if (collection.isLoaded()) {
+                if (event.type == EventType.ADD && collection.documents.size() >= event.offset + event.count) {
+                    event.documents = collection.documents.subList(event.offset, event.offset + event.count)
+                            .toArray(new VectorDocument[event.count]);
+                } else if (event.type == EventType.ALIAS
+                        && collection.aliases.size() >= event.offset + event.count) {
+                    event.aliases = collection.aliases.subList(event.offset, event.offset + event.count)
+                            .toArray(new VectorAlias[event.count]);
+                }
+                return;
+            }
+        }
+        if (event.type == EventType.ADD) {
+            var documents = new ArrayList<VectorDocument>(event.count);
+            collection.storage.readDocuments(event.offset, event.count, documents);
+            event.documents = documents.toArray(new VectorDocument[event.count]);
+        } else {
+            var aliases = new ArrayList<VectorAlias>(event.count);
+            collection.storage.readAliases(event.offset, event.count, aliases);
+            event.aliases = aliases.toArray(new VectorAlias[event.count]);
+        }
+    }
+
+    private static String[] texts(List<VectorDocument> documents) {
+        String[] texts = new String[documents.size()];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = documents.get(i).text;
+        }
+        return texts;
+    }
+
+    @Override
     public List<VectorDocument> getDocuments(String id, int offset, int limit) {
-        VectorCollection collection = collections.get(id);
-        if (collection == null)
-            throw new RuntimeException("No collection with id " + id);
+        VectorCollection collection = acquire(id);
 
         List<VectorDocument> docs = collection.documents;
         if (offset < 0 || offset >= docs.size())
@@ -261,21 +1008,119 @@ public class VectorStore {
         return sublist;
     }
 
-    public VectorStoreSimilarity[] query(String id, float[] queryVector, int k) {
-        VectorCollection collection = collections.get(id);
+    /**
+     * Rough cost of a query against the collection for scheduling, the number of
+     * vector components an exact scan touches. Evicted collections cost the same
+     * as loaded ones, loading them is usually cheaper than scanning repeatedly.
+     */
+    public synchronized long queryCost(String id) {
+        var collection = collections.get(id);
         if (collection == null)
-            throw new RuntimeException("No collection with id " + id);
-        if (queryVector.length != collection.numDimensions)
-            throw new RuntimeException(
-                    "Invalid vector length. Expected: " + collection.numDimensions + ", actual: " + queryVector.length);
-
-        EngineSimilarity[] engineSimilarities = collection.engine.query(queryVector, k);
-        VectorStoreSimilarity[] similarities = new VectorStoreSimilarity[engineSimilarities.length];
-        for (int i = 0; i < similarities.length; i++) {
-            var engineSimilarity = engineSimilarities[i];
-            similarities[i] = new VectorStoreSimilarity(engineSimilarity.similarity,
-                    collection.documents.get(engineSimilarity.index));
-        }
-        return similarities;
+            return 1;
+        return Math.max(1, (long) collection.numDocuments() * collection.numDimensions);
+    }
+
+    public VectorStoreSimilarity[] query(String id, float[] queryVector, int k) {
+        var options = new QueryOptions();
+        options.queryVector = queryVector;
+        options.k = k;
+        return query(id, options);
+    }
+
+    @Override
+    public VectorStoreSimilarity[] query(String id, QueryOptions options) {
+        VectorCollection collection = acquire(id);
+        var mode = options.mode == null ? QueryMode.VECTOR : options.mode;
+        var hasText = options.queryText != null && !options.queryText.isBlank();
+        if (mode != QueryMode.VECTOR && !hasText) {
+            if (mode == QueryMode.LEXICAL)
+                throw new RuntimeException("Lexical queries require a query text");
+            mode = QueryMode.VECTOR;
+        }
+        var queryVector = options.queryVector;
+        if (mode != QueryMode.LEXICAL || queryVector != null) {
+            if (queryVector == null)
+                throw new RuntimeException("No query vector given");
+            if (queryVector.length != collection.numDimensions)
+                throw new RuntimeException(
+                        "Invalid vector length. Expected: " + collection.numDimensions + ", actual: "
+                                + queryVector.length);
+        }
+        if (collection.engine == null)
+            return new VectorStoreSimilarity[0];
+
+        if (!ResultSelection.needsCandidates(options))
+            return retrieve(collection, options, mode, options.k);
+        return ResultSelection.select(retrieve(collection, options, mode, ResultSelection.numCandidates(options)),
+                options);
+    }
+
+    private VectorStoreSimilarity[] retrieve(VectorCollection collection, QueryOptions options, QueryMode mode, int k) {
+        var queryVector = options.queryVector;
+        switch (mode) {
+            case LEXICAL: {
+                Bm25Score[] scores = collection.lexicalIndex.query(options.queryText, k);
+                VectorStoreSimilarity[] similarities = new VectorStoreSimilarity[scores.length];
+                for (int i = 0; i < scores.length; i++) {
+                    var doc = collection.documents.get(scores[i].index);
+                    var similarity = queryVector != null ? Linalg.dot(doc.vector, 0, queryVector) : 0;
+                    similarities[i] = similarity(collection, scores[i].index, similarity, scores[i].score);
+                }
+                return similarities;
+            }
+            case HYBRID:
+                return queryHybrid(collection, options, k);
+            default: {
+                EngineSimilarity[] engineSimilarities = collection.engine.query(queryVector, k);
+                VectorStoreSimilarity[] similarities = new VectorStoreSimilarity[engineSimilarities.length];
+                for (int i = 0; i < similarities.length; i++) {
+                    var engineSimilarity = engineSimilarities[i];
+                    similarities[i] = similarity(collection, engineSimilarity.index, engineSimilarity.similarity,
+                            engineSimilarity.similarity);
+                }
+                return similarities;
+            }
+        }
+    }
+
+    private static VectorStoreSimilarity similarity(VectorCollection collection, int position, float similarity,
+            float score) {
+        var result = new VectorStoreSimilarity(similarity, score, collection.documents.get(position));
+        result.generation = collection.generation;
+        result.position = position;
+        return result;
+    }
+
+    /**
+     * Fuses the top candidates of the vector engine and the BM25 index via
+     * reciprocal rank fusion. The similarity of each result is still its cosine
+     * similarity, the fused score is reported separately.
+     */
+    private VectorStoreSimilarity[] queryHybrid(VectorCollection collection, QueryOptions options, int k) {
+        int numCandidates = Math.max(k, ResultSelection.numCandidates(options));
+        var fused = new HashMap<Integer, VectorStoreSimilarity>();
+
+        EngineSimilarity[] engineSimilarities = collection.engine.query(options.queryVector, numCandidates);
+        for (int rank = 0; rank < engineSimilarities.length; rank++) {
+            var engineSimilarity = engineSimilarities[rank];
+            fused.put(engineSimilarity.index, similarity(collection, engineSimilarity.index,
+                    engineSimilarity.similarity, 1f / (RRF_K + rank + 1)));
+        }
+
+        Bm25Score[] lexicalScores = collection.lexicalIndex.query(options.queryText, numCandidates);
+        for (int rank = 0; rank < lexicalScores.length; rank++) {
+            var index = lexicalScores[rank].index;
+            var similarity = fused.get(index);
+            if (similarity == null) {
+                var doc = collection.documents.get(index);
+                similarity = similarity(collection, index, Linalg.dot(doc.vector, 0, options.queryVector), 0);
+                fused.put(index, similarity);
+            }
+            similarity.score += 1f / (RRF_K + rank + 1);
+        }
+
+        var result = fused.values().toArray(new VectorStoreSimilarity[fused.size()]);
+        Arrays.sort(result, (o1, o2) -> Float.compare(o2.score, o1.score));
+        return result.length <= k ? result : Arrays.copyOf(result, k);
     }
 }
@@ -0,0 +1,39 @@
+package com.badlogicgames.jnn;
+
+import java.util.List;
+
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
+import com.badlogicgames.jnn.VectorStore.VectorAlias;
+import com.badlogicgames.jnn.VectorStore.VectorCollectionInfo;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+
+/**
+ * The operations {@link VectorStoreServer} exposes via HTTP, implemented by a
+ * local {@link VectorStore} or a {@link ShardedVectorStore} coordinating
+ * several JNN nodes.
+ */
+public interface VectorStoreBackend {
+    void createCollection(String id);
+
+    void deleteCollection(String id);
+
+    List<VectorCollectionInfo> getCollections();
+
+    default void addDocuments(String id, VectorDocument[] documents) {
+        addDocuments(id, documents, 0);
+    }
+
+    /**
+     * Adds the documents, collapsing near-duplicates with a cosine similarity of
+     * at least the threshold into aliases if it is above 0. Returns the number of
+     * documents collapsed.
+     */
+    int addDocuments(String id, VectorDocument[] documents, float duplicateThreshold);
+
+    List<VectorDocument> getDocuments(String id, int offset, int limit);
+
+    List<VectorAlias> getAliases(String id, int offset, int limit);
+
+    VectorStoreSimilarity[] query(String id, QueryOptions options);
+}
@@ -0,0 +1,230 @@
+package com.badlogicgames.jnn;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.badlogicgames.jnn.ReplicationLog.Event;
+import com.badlogicgames.jnn.VectorStore.VectorCollectionInfo;
+
+/**
+ * Keeps a local {@link VectorStore} in sync with a primary JNN node by long
+ * polling the primary's replication log and applying its events incrementally.
+ * The epoch and last applied sequence number are persisted next to the
+ * collections, so a restarted replica resumes where it left off as long as the
+ * primary hasn't restarted in the meantime. Otherwise it replays the primary's
+ * log from the start, keeping the documents of collections it already has.
+ */
+public class VectorStoreReplica {
+    public static final String STATE_FILE = "replication.state";
+    public static long POLL_WAIT_MILLIS = 10000;
+    public static int MAX_DOCUMENTS_PER_POLL = 5000;
+
+    public static class ReplicationStatus {
+        public String role;
+        public String primary;
+        public long epoch;
+        public long appliedSeq;
+        public long primaryHead;
+        public long lagEvents;
+        public long lagMillis;
+        public boolean connected;
+    }
+
+    final VectorStore store;
+    final String primary;
+    final File stateFile;
+    final HttpClient client;
+    volatile long epoch = -1;
+    volatile long appliedSeq;
+    volatile long primaryHead;
+    volatile long caughtUpAt = System.currentTimeMillis();
+    volatile boolean connected;
+    volatile boolean running = true;
+    final Thread thread;
+
+    public VectorStoreReplica(VectorStore store, String primaryUrl) {
+        this.store = store;
+        this.primary = primaryUrl.endsWith("/") ? primaryUrl.substring(0, primaryUrl.length() - 1) : primaryUrl;
+        this.stateFile = new File(store.dataDir, STATE_FILE);
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10))
+                .version(HttpClient.Version.HTTP_1_1).build();
+        loadState();
+
+        thread = new Thread(this::run, "replica");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    public ReplicationStatus getStatus() {
+        var status = new ReplicationStatus();
+        status.role = "replica";
+        status.primary = primary;
+        status.epoch = epoch;
+        status.appliedSeq = appliedSeq;
+        status.primaryHead = primaryHead;
+        status.lagEvents = Math.max(0, primaryHead - appliedSeq);
+        status.lagMillis = status.lagEvents == 0 ? 0 : System.currentTimeMillis() - caughtUpAt;
+        status.connected = connected;
+        return status;
+    }
+
+    private void run() {
+        long backoff = 100;
+        while (running) {
+            try {
+                poll();
+                backoff = 100;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                connected = false;
+                System.err.println("Replication from " + primary + " failed: " + t.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, 10000);
+            }
+        }
+    }
+
+    private void poll() throws IOException, InterruptedException {
+        var request = HttpRequest
+                .newBuilder(URI.create(primary + "/replication/log?epoch=" + epoch + "&from=" + (appliedSeq + 1)
+                        + "&wait=" + POLL_WAIT_MILLIS + "&maxDocuments=" + MAX_DOCUMENTS_PER_POLL))
+                .timeout(Duration.ofMillis(POLL_WAIT_MILLIS + 60000)).GET().build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (var in = new DataInputStream(new BufferedInputStream(response.body()))) {
+            if (response.statusCode() == 409) {
+                var primaryEpoch = Long.parseLong(response.headers().firstValue("X-JNN-Epoch").orElseThrow());
+                reset(primaryEpoch);
+                return;
+            }
+            if (response.statusCode() != 200)
+                throw new IOException("Primary responded with status " + response.statusCode());
+            connected = true;
+
+            primaryHead = Long.parseLong(response.headers().firstValue("X-JNN-Head").orElseThrow());
+            var events = ReplicationLog.readEvents(in);
+            for (var event : events) {
+                apply(event);
+                appliedSeq = event.seq;
+            }
+            if (!events.isEmpty())
+                saveState();
+            if (appliedSeq >= primaryHead)
+                caughtUpAt = System.currentTimeMillis();
+        }
+    }
+
+    private void apply(Event event) {
+        switch (event.type) {
+            case CREATE -> store.createCollection(event.collectionId);
+            case DELETE -> store.deleteCollection(event.collectionId);
+            case ADD -> {
+                store.createCollection(event.collectionId);
+                int numDocuments = numDocuments(event.collectionId);
+                // Events may be applied again if we crashed before saving our state. Skip what we already have.
+                int skip = numDocuments - event.offset;
+                if (skip < 0)
+                    throw new IllegalStateException("Missing documents in collection " + event.collectionId
+                            + ", expected " + event.offset + ", have " + numDocuments);
+                if (skip < event.documents.length)
+                    store.addDocuments(event.collectionId,
+                            Arrays.copyOfRange(event.documents, skip, event.documents.length));
+            }
+            case ALIAS -> {
+                int numAliases = 0;
+                for (var info : store.getCollections()) {
+                    if (info.id.equals(event.collectionId))
+                        numAliases = info.numAliases;
+                }
+                int skip = numAliases - event.offset;
+                if (skip < 0)
+                    throw new IllegalStateException("Missing aliases in collection " + event.collectionId
+                            + ", expected " + event.offset + ", have " + numAliases);
+                if (skip < event.aliases.length)
+                    store.addAliases(event.collectionId, Arrays.copyOfRange(event.aliases, skip, event.aliases.length));
+            }
+        }
+    }
+
+    private int numDocuments(String id) {
+        for (var info : store.getCollections()) {
+            if (info.id.equals(id))
+                return info.numDocuments;
+        }
+        return 0;
+    }
+
+    /**
+     * Reconciles the local collections with the primary's before replaying the
+     * log of a new primary epoch. The new log starts with create and add events
+     * for all of the primary's collections, which are skipped for documents we
+     * already have, so only collections the primary no longer has, or that have
+     * more documents or aliases than on the primary, are dropped. The others keep
+     * serving queries while the replay catches up.
+     */
+    private void reset(long primaryEpoch) throws IOException, InterruptedException {
+        System.out.println("Primary epoch changed from " + epoch + " to " + primaryEpoch + ", resynchronizing");
+        var response = client.send(HttpRequest.newBuilder(URI.create(primary + "/collections"))
+                .timeout(Duration.ofSeconds(60)).GET().build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200)
+            throw new IOException("Primary responded with status " + response.statusCode());
+        var primaryCollections = new HashMap<String, VectorCollectionInfo>();
+        for (var info : VectorStoreServer.objectMapper.readValue(response.body(), VectorCollectionInfo[].class))
+            primaryCollections.put(info.id, info);
+
+        for (var info : store.getCollections()) {
+            var primaryInfo = primaryCollections.get(info.id);
+            if (primaryInfo == null || info.numDocuments > primaryInfo.numDocuments
+                    || info.numAliases > primaryInfo.numAliases) {
+                System.out.println("Dropping collection " + info.id + ", it diverged from the primary");
+                store.deleteCollection(info.id);
+            }
+        }
+        epoch = primaryEpoch;
+        appliedSeq = 0;
+        primaryHead = 0;
+        saveState();
+    }
+
+    private void loadState() {
+        if (!stateFile.exists())
+            return;
+        try {
+            var parts = Files.readString(stateFile.toPath(), StandardCharsets.UTF_8).trim().split(" ");
+            epoch = Long.parseLong(parts[0]);
+            appliedSeq = Long.parseLong(parts[1]);
+        } catch (Throwable t) {
+            System.err.println("Could not read replication state, resynchronizing from scratch");
+            epoch = -1;
+            appliedSeq = 0;
+        }
+    }
+
+    private void saveState() throws IOException {
+        var tmpFile = new File(stateFile.getPath() + ".tmp");
+        Files.writeString(tmpFile.toPath(), epoch + " " + appliedSeq, StandardCharsets.UTF_8);
+        Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
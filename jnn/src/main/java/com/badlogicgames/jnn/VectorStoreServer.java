@@ -1,53 +1,62 @@
 package com.badlogicgames.jnn;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
+import com.badlogicgames.jnn.ResultWriter.Projection;
 import com.badlogicgames.jnn.VectorStore.NearestNeighbourEngineProvider;
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
 import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+import com.badlogicgames.jnn.VectorStoreReplica.ReplicationStatus;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializerProvider;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import io.undertow.Undertow;
 import io.undertow.UndertowOptions;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.SameThreadExecutor;
 import io.undertow.util.StatusCodes;
 
 public class VectorStoreServer {
+    public static long FRAGMENT_CACHE_BYTES = 64 * 1024 * 1024;
 
-    public static class OutputVectorDocument {
-        public String uri;
-        public int index;
-        public String title;
-        public String text;
-        public int tokenCount;
-        public float distance;
-
-        public OutputVectorDocument(VectorDocument doc, float distance) {
-            this.uri = doc.uri;
-            this.index = doc.index;
-            this.title = doc.title;
-            this.text = doc.text;
-            this.tokenCount = doc.tokenCount;
-            this.distance = distance;
-        }
+    static final ObjectMapper objectMapper = new ObjectMapper();
+    static {
+        objectMapper.getFactory().disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
     }
+    static final ObjectReader addRequestReader = objectMapper.readerFor(AddRequest.class);
+    static final ObjectReader queryRequestReader = objectMapper.readerFor(QueryRequest.class);
+    static final HttpString EPOCH_HEADER = new HttpString("X-JNN-Epoch");
+    static final HttpString HEAD_HEADER = new HttpString("X-JNN-Head");
 
     public static class AddRequest {
         public String id;
         public VectorDocument[] docs;
+        /**
+         * Collapse documents with at least this cosine similarity to a document in
+         * the collection into aliases of it, 0 to add all documents.
+         */
+        public float duplicateThreshold;
+    }
+
+    public static class AddResponse {
+        public String message;
+        /** Number of documents recorded as aliases instead of being added. */
+        public int duplicates;
     }
 
-    public static class QueryRequest {
+    public static class QueryRequest extends QueryOptions {
         public String id;
-        public float[] queryVector;
-        public int k;
+        /** Tenant the query is scheduled as, see {@link QueryScheduler}. Defaults to the collection id. */
+        public String tenant;
+        /** Fields to include in each result, see {@link ResultWriter#ALL_FIELDS}. All if null. */
+        public String[] fields;
     }
 
     class Requests implements HttpHandler {
@@ -58,7 +67,14 @@ public class VectorStoreServer {
                 return;
             }
 
-            switch (exchange.getRequestPath()) {
+            var path = exchange.getRequestPath();
+            if (replica != null && (path.equals("/create") || path.equals("/delete") || path.equals("/add"))) {
+                exchange.setStatusCode(StatusCodes.FORBIDDEN);
+                exchange.getResponseSender().send("{\"message\": \"Read-only replica\"}");
+                return;
+            }
+
+            switch (path) {
                 case "/create":
                     if (exchange.getRequestMethod().equalToString("GET")) {
                         handleCreate(exchange);
@@ -79,6 +95,11 @@ public class VectorStoreServer {
                         handleGet(exchange);
                     }
                     break;
+                case "/aliases":
+                    if (exchange.getRequestMethod().equalToString("GET")) {
+                        handleGetAliases(exchange);
+                    }
+                    break;
                 case "/collections":
                     if (exchange.getRequestMethod().equalToString("GET")) {
                         handleGetCollections(exchange);
@@ -89,6 +110,21 @@ public class VectorStoreServer {
                         handleQuery(exchange);
                     }
                     break;
+                case "/replication":
+                    if (exchange.getRequestMethod().equalToString("GET")) {
+                        handleReplicationStatus(exchange);
+                    }
+                    break;
+                case "/replication/log":
+                    if (exchange.getRequestMethod().equalToString("GET")) {
+                        handleReplicationLog(exchange);
+                    }
+                    break;
+                case "/tenants":
+                    if (exchange.getRequestMethod().equalToString("GET")) {
+                        handleGetTenants(exchange);
+                    }
+                    break;
                 case "/ping":
                     exchange.setStatusCode(StatusCodes.OK);
                     exchange.getResponseSender().send("{\"message\": \"pong\"}");
@@ -108,6 +144,8 @@ public class VectorStoreServer {
                 store.createCollection(id); // Assuming this method call is correct
                 exchange.setStatusCode(StatusCodes.OK);
                 exchange.getResponseSender().send("{\"message\": \"OK\"}");
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, StatusCodes.BAD_REQUEST, e.getMessage());
             } catch (Exception e) {
                 e.printStackTrace();
                 exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
@@ -118,13 +156,15 @@ public class VectorStoreServer {
         private void handleAdd(HttpServerExchange exchange) {
             exchange.getRequestReceiver().receiveFullString((exchange1, message) -> {
                 try {
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    AddRequest addRequest = objectMapper.readValue(message, AddRequest.class);
+                    AddRequest addRequest = addRequestReader.readValue(message);
 
-                    store.addDocuments(addRequest.id, addRequest.docs);
+                    var response = new AddResponse();
+                    response.message = "Documents added";
+                    response.duplicates = store.addDocuments(addRequest.id, addRequest.docs,
+                            addRequest.duplicateThreshold);
                     exchange1.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
                     exchange1.setStatusCode(StatusCodes.OK);
-                    exchange1.getResponseSender().send("{\"message\": \"Documents added\"}");
+                    exchange1.getResponseSender().send(objectMapper.writeValueAsString(response));
                 } catch (IOException e) {
                     e.printStackTrace();
                     exchange1.setStatusCode(StatusCodes.BAD_REQUEST);
@@ -158,26 +198,48 @@ public class VectorStoreServer {
                 String id = exchange.getQueryParameters().get("id").getFirst();
                 int offset = Integer.parseInt(exchange.getQueryParameters().get("offset").getFirst());
                 int limit = Integer.parseInt(exchange.getQueryParameters().get("limit").getFirst());
-                var result = store.getDocuments(id, offset, limit); // Assuming this method call is correct
-                ObjectMapper objectMapper = new ObjectMapper();
-                var resultList = new ArrayList<OutputVectorDocument>(result.size());
-                for (var doc : result) {
-                    resultList.add(new OutputVectorDocument(doc, 0));
+                var fields = exchange.getQueryParameters().get("fields");
+                var projection = fields != null ? new Projection(fields.getFirst().split(",")) : Projection.ALL;
+                if (store instanceof VectorStore localStore) {
+                    // If the collection is reloaded in between, fragments cached under the old
+                    // generation are never hit again and age out of the cache.
+                    long generation = localStore.getGeneration(id);
+                    var result = store.getDocuments(id, offset, limit);
+                    exchange.setStatusCode(StatusCodes.OK);
+                    exchange.startBlocking();
+                    resultWriter.writeDocuments(result, generation, offset, projection, exchange.getOutputStream());
+                } else {
+                    var result = store.getDocuments(id, offset, limit);
+                    exchange.setStatusCode(StatusCodes.OK);
+                    exchange.startBlocking();
+                    resultWriter.writeDocuments(result, projection, exchange.getOutputStream());
                 }
-                String json = objectMapper.writeValueAsString(resultList);
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, StatusCodes.BAD_REQUEST, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, StatusCodes.INTERNAL_SERVER_ERROR, "Error getting documents from collection");
+            }
+        }
+
+        private void handleGetAliases(HttpServerExchange exchange) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            try {
+                String id = exchange.getQueryParameters().get("id").getFirst();
+                int offset = Integer.parseInt(exchange.getQueryParameters().get("offset").getFirst());
+                int limit = Integer.parseInt(exchange.getQueryParameters().get("limit").getFirst());
+                String json = objectMapper.writeValueAsString(store.getAliases(id, offset, limit));
                 exchange.setStatusCode(StatusCodes.OK);
                 exchange.getResponseSender().send(json);
             } catch (Exception e) {
                 e.printStackTrace();
-                exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
-                exchange.getResponseSender().send("{\"message\": \"Error getting documents from collection\"}");
+                sendError(exchange, StatusCodes.INTERNAL_SERVER_ERROR, "Error getting aliases from collection");
             }
         }
 
         private void handleGetCollections(HttpServerExchange exchange) {
             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
             try {
-                ObjectMapper objectMapper = new ObjectMapper();
                 String json = objectMapper.writeValueAsString(store.getCollections());
                 exchange.setStatusCode(StatusCodes.OK);
                 exchange.getResponseSender().send(json);
@@ -189,39 +251,177 @@ public class VectorStoreServer {
         }
 
         private void handleQuery(HttpServerExchange exchange) {
-            exchange.getRequestReceiver().receiveFullString((exchange1, message) -> {
-                long start = System.nanoTime();
-                exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            long start = System.nanoTime();
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            exchange.startBlocking();
+            QueryRequest queryRequest;
+            Projection projection;
+            try {
+                queryRequest = queryRequestReader.readValue(exchange.getInputStream());
+                projection = queryRequest.fields != null ? new Projection(queryRequest.fields) : Projection.ALL;
+                ResultSelection.validate(queryRequest);
+            } catch (IOException e) {
+                e.printStackTrace();
+                sendError(exchange, StatusCodes.BAD_REQUEST, "Invalid request body");
+                return;
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, StatusCodes.BAD_REQUEST, e.getMessage());
+                return;
+            }
+            var tenant = queryRequest.tenant != null ? queryRequest.tenant : queryRequest.id;
+            var cost = store instanceof VectorStore localStore ? localStore.queryCost(queryRequest.id) : 1;
+
+            // A queued query doesn't hold on to a worker thread, the exchange is handed
+            // back to one once the query is admitted or rejected.
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () -> queryScheduler.submit(tenant, cost,
+                    (release) -> exchange.dispatch((HttpHandler) (admitted) -> {
+                        runQuery(admitted, queryRequest, projection, release);
+                        // System.out.println("Query took: " + (System.nanoTime() - start) / 1e6d + " ms");
+                    }),
+                    (rejected) -> exchange.dispatch((HttpHandler) (rejectedExchange) -> sendError(rejectedExchange,
+                            StatusCodes.TOO_MANY_REQUESTS, rejected.getMessage()))));
+        }
+
+        private void runQuery(HttpServerExchange exchange, QueryRequest queryRequest, Projection projection,
+                Runnable release) {
+            try {
+                VectorStoreSimilarity[] topK;
                 try {
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    QueryRequest queryRequest = objectMapper.readValue(message, QueryRequest.class);
+                    topK = store.query(queryRequest.id, queryRequest);
+                } finally {
+                    release.run();
+                }
+                exchange.setStatusCode(StatusCodes.OK);
+                resultWriter.writeSimilarities(topK, projection, exchange.getOutputStream());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, StatusCodes.BAD_REQUEST, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, StatusCodes.INTERNAL_SERVER_ERROR, e.getMessage());
+            }
+        }
 
-                    var topK = store.query(queryRequest.id, queryRequest.queryVector, queryRequest.k);
-                    var resultList = new ArrayList<OutputVectorDocument>(topK.length);
-                    for (var doc : topK) {
-                        resultList.add(new OutputVectorDocument(doc.doc, doc.similarity));
-                    }
-                    String json = objectMapper.writeValueAsString(resultList);
-                    exchange.setStatusCode(StatusCodes.OK);
-                    exchange.getResponseSender().send(json);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    exchange1.setStatusCode(StatusCodes.BAD_REQUEST);
-                    exchange1.getResponseSender().send("{\"message\": \"Invalid request body\"}");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    exchange1.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
-                    exchange1.getResponseSender().send("{\"message\": \"" + e.getMessage() + "\"}");
+        private void handleGetTenants(HttpServerExchange exchange) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            try {
+                String json = objectMapper.writeValueAsString(queryScheduler.getStats());
+                exchange.setStatusCode(StatusCodes.OK);
+                exchange.getResponseSender().send(json);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, StatusCodes.INTERNAL_SERVER_ERROR, "Error getting tenant statistics");
+            }
+        }
+
+        private void handleReplicationStatus(HttpServerExchange exchange) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            try {
+                ReplicationStatus status;
+                if (replica != null) {
+                    status = replica.getStatus();
+                } else if (store instanceof VectorStore localStore) {
+                    status = new ReplicationStatus();
+                    status.role = "primary";
+                    status.epoch = localStore.getReplicationLog().getEpoch();
+                    status.primaryHead = status.appliedSeq = localStore.getReplicationLog().getHead();
+                } else {
+                    sendError(exchange, StatusCodes.NOT_FOUND, "Replication is not supported by this node");
+                    return;
                 }
-                // System.out.println("Query took: " + (System.nanoTime() - start) / 1e6d + " ms");
-            });
+                exchange.setStatusCode(StatusCodes.OK);
+                exchange.getResponseSender().send(objectMapper.writeValueAsString(status));
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, StatusCodes.INTERNAL_SERVER_ERROR, "Error getting replication status");
+            }
+        }
+
+        /**
+         * Streams the replication log's events starting at the given sequence number,
+         * waiting for new events if there are none. Answers with 409 if the replica
+         * follows a previous epoch, so it knows to resynchronize.
+         */
+        private void handleReplicationLog(HttpServerExchange exchange) {
+            if (!(store instanceof VectorStore localStore)) {
+                sendError(exchange, StatusCodes.NOT_FOUND, "Replication is not supported by this node");
+                return;
+            }
+            try {
+                var params = exchange.getQueryParameters();
+                long epoch = Long.parseLong(params.get("epoch").getFirst());
+                long from = Long.parseLong(params.get("from").getFirst());
+                long wait = Math.min(Long.parseLong(params.get("wait").getFirst()), 60000);
+                int maxDocuments = Integer.parseInt(params.get("maxDocuments").getFirst());
+
+                var log = localStore.getReplicationLog();
+                exchange.getResponseHeaders().put(EPOCH_HEADER, log.getEpoch());
+                if (epoch != log.getEpoch()) {
+                    exchange.setStatusCode(StatusCodes.CONFLICT);
+                    exchange.getResponseSender().send("");
+                    return;
+                }
+
+                var events = localStore.readReplicationEvents(from, wait, maxDocuments);
+                exchange.getResponseHeaders().put(HEAD_HEADER, log.getHead());
+                exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/octet-stream");
+                exchange.setStatusCode(StatusCodes.OK);
+                exchange.startBlocking();
+                try (var out = new DataOutputStream(new BufferedOutputStream(exchange.getOutputStream()))) {
+                    ReplicationLog.writeEvents(out, events);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, StatusCodes.INTERNAL_SERVER_ERROR, "Error reading replication log");
+            }
+        }
+
+        private void sendError(HttpServerExchange exchange, int statusCode, String message) {
+            // Once the first bytes of a streamed result went out we can only cut the response short.
+            if (exchange.isResponseStarted()) {
+                exchange.endExchange();
+                return;
+            }
+            exchange.setStatusCode(statusCode);
+            exchange.getResponseSender().send("{\"message\": \"" + message + "\"}");
         }
     }
 
     Undertow server;
-    VectorStore store;
+    VectorStoreBackend store;
+    VectorStoreReplica replica;
+    QueryScheduler queryScheduler;
+    ResultWriter resultWriter;
 
     public VectorStoreServer(int port, String dataDir, NearestNeighbourEngineProvider engineProvider) {
+        this(port, new VectorStore(dataDir, engineProvider));
+    }
+
+    public VectorStoreServer(int port, VectorStoreBackend store) {
+        this(port, store, null);
+    }
+
+    /**
+     * Serves the given store. If a replica is given, the store is kept in sync
+     * by it and the server rejects writes.
+     */
+    public VectorStoreServer(int port, VectorStoreBackend store, VectorStoreReplica replica) {
+        this(port, store, replica, new QueryScheduler());
+    }
+
+    /**
+     * Serves the given store, admitting queries via the given scheduler.
+     */
+    public VectorStoreServer(int port, VectorStoreBackend store, VectorStoreReplica replica,
+            QueryScheduler queryScheduler) {
+        this.store = store;
+        this.replica = replica;
+        this.queryScheduler = queryScheduler;
+        // Documents returned by shards are fresh objects on every request, caching their fragments is pointless.
+        this.resultWriter = new ResultWriter(objectMapper.getFactory(),
+                store instanceof VectorStore ? FRAGMENT_CACHE_BYTES : 0);
+        if (store instanceof VectorStore localStore)
+            localStore.setDroppedListener(resultWriter::invalidate);
+
         Undertow.Builder builder = Undertow.builder();
         builder.setHandler(new Requests());
         int processors = Runtime.getRuntime().availableProcessors();
@@ -240,11 +440,11 @@ public class VectorStoreServer {
         builder.addHttpListener(port, "0.0.0.0");
         server = builder.build();
         server.start();
-
-        store = new VectorStore("/data", engineProvider);
     }
 
     public void stop() {
+        if (replica != null)
+            replica.stop();
         server.stop();
     }
 }
@@ -1,18 +1,35 @@
 package com.badlogicgames.jnn.engines;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.PriorityQueue;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.badlogicgames.jnn.Linalg;
 
 public class ExactNearestNeighbourEngine implements NearestNeighbourEngine {
+    /**
+     * Number of vectors scanned as one block. Scans of at most one block run on
+     * the calling thread alone.
+     */
+    public static int VECTORS_PER_BLOCK = 16 * 1024;
+
+    /**
+     * Runs the scan helpers of all engines, so engines of evicted or deleted
+     * collections don't leave idle threads behind.
+     */
+    static final ExecutorService sharedExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     int numDimensions;
     int cpus;
     float[] vectors;
@@ -28,18 +45,17 @@ public class ExactNearestNeighbourEngine implements NearestNeighbourEngine {
     }
 
     public ExactNearestNeighbourEngine(int numDimensions, int cpus, TopKSelection selection) {
+        this(numDimensions, cpus, selection, sharedExecutor);
+    }
+
+    public ExactNearestNeighbourEngine(int numDimensions, int cpus, TopKSelection selection,
+            ExecutorService executor) {
         this.numDimensions = numDimensions;
         this.cpus = cpus;
         this.selection = selection;
         vectors = new float[0];
         similarities = new EngineSimilarity[0];
-        this.executor = Executors.newFixedThreadPool(cpus, new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                Thread t = Executors.defaultThreadFactory().newThread(r);
-                t.setDaemon(true);
-                return t;
-            }
-        });
+        this.executor = executor;
     }
 
     @Override
@@ -61,11 +77,21 @@ public class ExactNearestNeighbourEngine implements NearestNeighbourEngine {
         similarities = newSimilarities;
     }
 
+    /**
+     * Scans the vectors in blocks of {@link #VECTORS_PER_BLOCK}. The calling
+     * thread takes blocks itself and is helped by at most cpus - 1 tasks on the
+     * shared executor, which take blocks until none are left. The query never
+     * waits for helpers queued behind other queries' scans, only for blocks
+     * already being scanned, so small collections aren't stuck behind large ones.
+     */
     @Override
     public EngineSimilarity[] query(float[] query, int k) {
-        int totalVectors = numVectors();
-        int chunkSize = (int) Math.ceil(totalVectors / (double) cpus);
-        List<Future<?>> futures = new ArrayList<>();
+        // Helpers may outlive the query, they only see what it scanned.
+        var vectors = this.vectors;
+        var similarities = this.similarities;
+        int totalVectors = vectors.length / numDimensions;
+        int blockSize = VECTORS_PER_BLOCK;
+        int numBlocks = (totalVectors + blockSize - 1) / blockSize;
 
         for (int i = 0; i < similarities.length; i++) {
             var similarity = similarities[i];
@@ -73,28 +99,31 @@ public class ExactNearestNeighbourEngine implements NearestNeighbourEngine {
         }
 
         long dotTime = System.nanoTime();
-        for (int i = 0; i < cpus; i++) {
-            final int start = i * chunkSize;
-            final int end = Math.min(start + chunkSize, totalVectors);
-            futures.add(executor.submit((Runnable) () -> {
+        var nextBlock = new AtomicInteger();
+        var scanned = new CountDownLatch(numBlocks);
+        Runnable scan = () -> {
+            for (int block = nextBlock.getAndIncrement(); block < numBlocks; block = nextBlock.getAndIncrement()) {
+                int start = block * blockSize;
+                int end = Math.min(start + blockSize, totalVectors);
                 for (int j = start, offset = start * numDimensions; j < end; j++, offset += numDimensions) {
                     var similarity = similarities[j];
                     similarity.similarity = Linalg.dot(vectors, offset, query);
                 }
-            }));
-        }
-
-        for (Future<?> future : futures) {
-            try {
-                future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
+                scanned.countDown();
             }
+        };
+        for (int i = 1; i < Math.min(cpus, numBlocks); i++)
+            executor.execute(scan);
+        scan.run();
+        try {
+            scanned.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
         }
         this.dotTimes += (System.nanoTime() - dotTime);
 
         long selectionTime = System.nanoTime();
-        var topK = this.selection.select(this.similarities, k);
+        var topK = this.selection.select(similarities, k);
         this.selectionTimes += (System.nanoTime() - selectionTime);
         this.numQueries++;
         return topK;
@@ -105,6 +134,12 @@ public class ExactNearestNeighbourEngine implements NearestNeighbourEngine {
         return vectors.length / numDimensions;
     }
 
+    @Override
+    public long memoryUsage() {
+        // Packed vectors plus one similarity object and its reference per vector.
+        return vectors.length * 4L + similarities.length * 32L;
+    }
+
     @FunctionalInterface
     public static interface TopKSelection {
         EngineSimilarity[] select(EngineSimilarity[] similarities, int k);
@@ -1,5 +1,9 @@
 package com.badlogicgames.jnn.engines;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public interface NearestNeighbourEngine {
     void addVectors(float[][] vector);
 
@@ -7,6 +11,43 @@ public interface NearestNeighbourEngine {
 
     int numVectors();
 
+    /**
+     * Identifies the format of the data written by {@link #writeIndex}, e.g.
+     * {@code "hnsw-1"}. Persisted index data is only handed to engines reporting
+     * the same format, so bump it when the layout changes. Engines without derived
+     * state worth persisting, like the exact engine whose only state is the
+     * vectors already stored in the segments, return null.
+     */
+    default String indexFormat() {
+        return null;
+    }
+
+    /**
+     * Writes the engine's derived index state, such as graphs, centroids, codebooks
+     * or norms, so it can be restored via {@link #readIndex} instead of being
+     * rebuilt by {@link #addVectors} on the next start.
+     */
+    default void writeIndex(DataOutputStream out) throws IOException {
+    }
+
+    /**
+     * Restores the index state for the given vectors from data written by
+     * {@link #writeIndex} on an empty engine. Returns false if the data can't be
+     * used, in which case the engine is discarded and a new one built from the
+     * vectors.
+     */
+    default boolean readIndex(DataInputStream in, float[][] vectors) throws IOException {
+        return false;
+    }
+
+    /**
+     * Estimated number of bytes of heap the engine holds on to, not counting the
+     * vectors passed to {@link #addVectors} unless the engine copies them.
+     */
+    default long memoryUsage() {
+        return 0;
+    }
+
     public static class EngineSimilarity {
         public int index;
         public float similarity;
@@ -32,4 +73,4 @@ public interface NearestNeighbourEngine {
             return result;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.Bm25Index;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.QueryMode;
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+
+public class Bm25IndexTest {
+    @Test
+    public void testRanking() {
+        var index = new Bm25Index();
+        index.addDocuments(new String[] {
+                "Spine skeletons can be loaded at runtime.",
+                "Die Gr\u00f6\u00dfe des Atlas h\u00e4ngt von der Textur ab.",
+                "Mesh deformation and skeleton weights in Spine",
+                "Unrelated text about cooking pasta."
+        });
+
+        var result = index.query("spine mesh weights", 10);
+        assertEquals(2, result.length);
+        assertEquals(2, result[0].index);
+        assertEquals(0, result[1].index);
+
+        result = index.query("gr\u00f6\u00dfe", 10);
+        assertEquals(1, result.length);
+        assertEquals(1, result[0].index);
+
+        assertEquals(0, index.query("nothing matches", 10).length);
+    }
+
+    @Test
+    public void testHybridQuery() {
+        var numDimensions = 16;
+        try {
+            var store = new VectorStore("tmp",
+                    (numDims) -> new ExactNearestNeighbourEngine(numDims, 1));
+            store.createCollection("test");
+            var docs = Benchmark.randomDocuments(100, numDimensions);
+            docs.get(42).text = "the quick brown fox";
+            store.addDocuments("test", docs.toArray(new VectorDocument[docs.size()]));
+
+            var options = new QueryOptions();
+            options.queryVector = docs.get(7).vector;
+            options.queryText = "brown fox";
+            options.k = 5;
+            options.mode = QueryMode.HYBRID;
+            var result = store.query("test", options);
+            assertEquals(5, result.length);
+
+            boolean hasVectorMatch = false, hasLexicalMatch = false;
+            for (int i = 0; i < result.length; i++) {
+                if (i > 0)
+                    assertTrue(result[i - 1].score >= result[i].score);
+                hasVectorMatch |= result[i].doc == docs.get(7);
+                hasLexicalMatch |= result[i].doc == docs.get(42);
+            }
+            assertTrue(hasVectorMatch);
+            assertTrue(hasLexicalMatch);
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}
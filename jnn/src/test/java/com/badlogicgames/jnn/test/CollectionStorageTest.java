@@ -0,0 +1,274 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.CollectionStorage;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.QueryMode;
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStoreServer;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+
+public class CollectionStorageTest {
+    static void assertSameDocuments(List<VectorDocument> expected, List<VectorDocument> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).uri, actual.get(i).uri);
+    }
+
+    static File lastSegment(File dir) {
+        File last = null;
+        for (var file : dir.listFiles()) {
+            if (file.getName().endsWith(".seg") && (last == null || file.getName().compareTo(last.getName()) > 0))
+                last = file;
+        }
+        return last;
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        var dir = new File("tmp/collection");
+        try {
+            var docs = Benchmark.randomDocuments(30, 8);
+            var storage = CollectionStorage.create(dir);
+            for (int i = 0; i < docs.size(); i += 10)
+                storage.append(docs.subList(i, i + 10).toArray(new VectorDocument[0]));
+
+            var loaded = new ArrayList<VectorDocument>();
+            CollectionStorage.open(dir, loaded);
+            assertSameDocuments(docs, loaded);
+
+            // Torn record at the end of the last segment.
+            var segment = lastSegment(dir);
+            long length = segment.length();
+            try (var out = new FileOutputStream(segment, true)) {
+                out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+            }
+            loaded.clear();
+            CollectionStorage.open(dir, loaded);
+            assertSameDocuments(docs, loaded);
+            assertEquals(length, segment.length());
+
+            // Corrupt payload of the last record.
+            try (var file = new RandomAccessFile(segment, "rw")) {
+                file.seek(length - 5);
+                file.write(0xff ^ file.read());
+            }
+            loaded.clear();
+            CollectionStorage.open(dir, loaded);
+            assertSameDocuments(docs.subList(0, docs.size() - 1), loaded);
+
+            // Segments written but never committed to the manifest are removed.
+            var orphan = new File(dir, "segment-00000099.seg");
+            assertTrue(orphan.createNewFile());
+            CollectionStorage.open(dir, new ArrayList<>());
+            assertFalse(orphan.exists());
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testCompaction() {
+        var dir = new File("tmp/collection");
+        var minSegmentsToCompact = CollectionStorage.MIN_SEGMENTS_TO_COMPACT;
+        try {
+            CollectionStorage.MIN_SEGMENTS_TO_COMPACT = 4;
+            var docs = Benchmark.randomDocuments(100, 8);
+            var storage = CollectionStorage.create(dir);
+            for (int i = 0; i < docs.size(); i += 10)
+                storage.append(docs.subList(i, i + 10).toArray(new VectorDocument[0]));
+            assertEquals(10, storage.numSegments());
+            assertTrue(storage.needsCompaction());
+
+            storage.compact();
+            assertEquals(1, storage.numSegments());
+            assertEquals(docs.size(), storage.numDocuments());
+            assertFalse(storage.needsCompaction());
+
+            var loaded = new ArrayList<VectorDocument>();
+            CollectionStorage.open(dir, loaded);
+            assertSameDocuments(docs, loaded);
+        } finally {
+            CollectionStorage.MIN_SEGMENTS_TO_COMPACT = minSegmentsToCompact;
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testFailedAppend() throws InterruptedException {
+        try {
+            var store = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            store.createCollection("test");
+            var docs = Benchmark.randomDocuments(30, 8);
+            store.addDocuments("test", docs.subList(0, 20).toArray(new VectorDocument[0]), 0.95f);
+
+            // A directory in place of the next segment makes writing it fail.
+            var dir = new File("tmp/test");
+            var last = lastSegment(dir).getName();
+            int nextId = Integer.parseInt(last.substring("segment-".length(), last.length() - ".seg".length())) + 1;
+            assertTrue(new File(dir, String.format("segment-%08d.seg", nextId)).mkdir());
+            var failed = docs.subList(20, 30).toArray(new VectorDocument[0]);
+            assertThrows(RuntimeException.class, () -> store.addDocuments("test", failed, 0.95f));
+            assertEquals(20, store.getCollections().get(0).numDocuments);
+            assertEquals(20, store.getDocuments("test", 0, 100).size());
+            var events = store.readReplicationEvents(0, 0, 1000);
+            assertEquals(2, events.size());
+            assertEquals(20, events.get(1).count);
+
+            // Nothing of the failed write is left behind, not even in the duplicate index.
+            assertEquals(0, store.addDocuments("test", failed, 0.95f));
+            events = store.readReplicationEvents(0, 0, 1000);
+            assertEquals(20, events.get(2).offset);
+            assertEquals(10, events.get(2).count);
+            var reloaded = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            assertSameDocuments(docs, reloaded.getDocuments("test", 0, 100));
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testIndex() throws InterruptedException, IOException {
+        var indexWriteDelay = VectorStore.INDEX_WRITE_DELAY_MILLIS;
+        try {
+            VectorStore.INDEX_WRITE_DELAY_MILLIS = 0;
+            var docs = Benchmark.randomDocuments(100, 8);
+            var store = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            store.createCollection("test");
+            store.addDocuments("test", docs.toArray(new VectorDocument[0]));
+            var indexFile = new File("tmp/test/" + CollectionStorage.INDEX_FILE);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!indexFile.exists() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(indexFile.exists());
+
+            // The index belongs to the generation of the documents it was written for.
+            var storage = CollectionStorage.open(new File("tmp/test"), new ArrayList<>());
+            assertNotNull(storage.readIndex(storage.generation(), (in) -> docs.size()));
+            assertNull(storage.readIndex(storage.generation() + 1, (in) -> docs.size()));
+
+            // An index of other documents is stale, even if there are as many of them.
+            var other = CollectionStorage.create(new File("tmp/other"));
+            other.append(Benchmark.randomDocuments(docs.size(), 8).toArray(new VectorDocument[0]));
+            Files.copy(indexFile.toPath(), new File("tmp/other/" + CollectionStorage.INDEX_FILE).toPath());
+            assertNull(other.readIndex(other.generation(), (in) -> docs.size()));
+
+            // Only the BM25 index is persisted, the exact engine is rebuilt from the
+            // vectors in the segments instead of storing a second copy of them.
+            assertTrue(indexFile.length() < docs.size() * 8 * 4);
+
+            var options = new QueryOptions();
+            options.queryVector = Benchmark.randomVector(8);
+            options.queryText = "text";
+            options.mode = QueryMode.HYBRID;
+            options.k = 5;
+            var expected = store.query("test", options);
+            var reloaded = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            var actual = reloaded.query("test", options);
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i].doc.uri, actual[i].doc.uri);
+        } finally {
+            VectorStore.INDEX_WRITE_DELAY_MILLIS = indexWriteDelay;
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testLegacyMigration() throws IOException {
+        try {
+            new File("tmp").mkdirs();
+            var docs = Benchmark.randomDocuments(20, 8);
+            try (var out = new DataOutputStream(new FileOutputStream("tmp/legacy" + VectorStore.FILE_SUFFIX))) {
+                for (var doc : docs)
+                    VectorDocument.encode(out, doc);
+                out.write(new byte[] { 0, 0, 0, 10, 'd', 'o' });
+            }
+
+            var store = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            assertEquals(docs.size(), store.getCollections().get(0).numDocuments);
+            assertFalse(new File("tmp/legacy" + VectorStore.FILE_SUFFIX).exists());
+            assertSameDocuments(docs, store.getDocuments("legacy", 0, docs.size()));
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testInterruptedLegacyMigration() throws IOException {
+        try {
+            new File("tmp").mkdirs();
+            var docs = Benchmark.randomDocuments(20, 8);
+            try (var out = new DataOutputStream(new FileOutputStream("tmp/legacy" + VectorStore.FILE_SUFFIX))) {
+                for (var doc : docs)
+                    VectorDocument.encode(out, doc);
+            }
+            // Left overs of a migration interrupted before and one interrupted after the rename.
+            CollectionStorage.create(new File("tmp/legacy" + VectorStore.MIGRATION_SUFFIX))
+                    .append(docs.subList(0, 5).toArray(new VectorDocument[0]));
+            CollectionStorage.create(new File("tmp/legacy")).append(docs.subList(0, 10).toArray(new VectorDocument[0]));
+
+            var store = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            assertEquals(1, store.getCollections().size());
+            assertEquals(docs.size(), store.getCollections().get(0).numDocuments);
+            assertSameDocuments(docs, store.getDocuments("legacy", 0, docs.size()));
+            assertFalse(new File("tmp/legacy" + VectorStore.FILE_SUFFIX).exists());
+            assertFalse(new File("tmp/legacy" + VectorStore.MIGRATION_SUFFIX).exists());
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testCollectionIds() throws IOException, InterruptedException {
+        var server = new VectorStoreServer(18431, "tmp/server",
+                (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+        try {
+            var store = new VectorStore("tmp/store", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            for (var id : new String[] { "", ".", "..", "../x", "a/b", "a b" })
+                assertThrows(IllegalArgumentException.class, () -> store.createCollection(id));
+            store.createCollection("valid_id-1");
+
+            // Files in an existing directory without a manifest are left alone.
+            var keep = new File("tmp/store/taken/keep");
+            keep.getParentFile().mkdirs();
+            keep.createNewFile();
+            assertThrows(RuntimeException.class, () -> store.createCollection("taken"));
+            assertTrue(keep.exists());
+
+            var client = HttpClient.newHttpClient();
+            for (var id : new String[] { "", "..%2Fx" }) {
+                var response = client.send(
+                        HttpRequest.newBuilder(URI.create("http://localhost:18431/create?id=" + id)).GET().build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertEquals(400, response.statusCode());
+            }
+            assertTrue(new File("tmp/server").exists());
+        } finally {
+            server.stop();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}
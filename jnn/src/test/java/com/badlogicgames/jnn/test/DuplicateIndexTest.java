@@ -0,0 +1,107 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.DuplicateIndex;
+import com.badlogicgames.jnn.Linalg;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+
+public class DuplicateIndexTest {
+    @Test
+    public void testCollapseDuplicates() {
+        var numDimensions = 64;
+        var random = new Random(1);
+        try {
+            var store = new VectorStore("tmp", (numDims) -> new ExactNearestNeighbourEngine(numDims, 1));
+            store.createCollection("test");
+            var docs = Benchmark.randomDocuments(200, numDimensions);
+            assertEquals(0, store.addDocuments("test", docs.toArray(new VectorDocument[0]), 0.95f));
+
+            // Slightly perturbed copies of the first 50 documents, plus one exact copy within the batch.
+            var copies = new ArrayList<VectorDocument>();
+            for (int i = 0; i < 50; i++) {
+                var copy = new VectorDocument();
+                copy.uri = "copy-" + i;
+                copy.title = "title-" + i;
+                copy.text = "text";
+                copy.vector = docs.get(i).vector.clone();
+                for (int j = 0; j < numDimensions; j++)
+                    copy.vector[j] += (float) random.nextGaussian() * 0.01f;
+                copies.add(copy);
+            }
+            var fresh = Benchmark.randomVector(numDimensions);
+            for (int i = 0; i < 2; i++) {
+                var doc = new VectorDocument();
+                doc.uri = "fresh-" + i;
+                doc.title = "fresh";
+                doc.text = "text";
+                doc.vector = fresh.clone();
+                copies.add(doc);
+            }
+            assertEquals(51, store.addDocuments("test", copies.toArray(new VectorDocument[0]), 0.95f));
+
+            var info = store.getCollections().get(0);
+            assertEquals(201, info.numDocuments);
+            assertEquals(51, info.numAliases);
+            var aliases = store.getAliases("test", 0, 100);
+            for (int i = 0; i < 50; i++) {
+                assertEquals("copy-" + i, aliases.get(i).uri);
+                assertEquals("doc-" + i, aliases.get(i).canonicalUri);
+            }
+            assertEquals("fresh-0", aliases.get(50).canonicalUri);
+
+            // Aliases survive a restart.
+            var reloaded = new VectorStore("tmp", (numDims) -> new ExactNearestNeighbourEngine(numDims, 1));
+            assertEquals(51, reloaded.getCollections().get(0).numAliases);
+            assertEquals("copy-49", reloaded.getAliases("test", 49, 1).get(0).uri);
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testClusteredVectors() {
+        var numDimensions = 64;
+        var random = new Random(1);
+        // Vectors sharing a common direction, like embeddings of real models.
+        var mean = Benchmark.randomVector(numDimensions);
+        Linalg.norm(mean, 0, numDimensions);
+        var docs = new ArrayList<VectorDocument>();
+        for (int i = 0; i < 5000; i++) {
+            var doc = new VectorDocument();
+            doc.vector = new float[numDimensions];
+            for (int j = 0; j < numDimensions; j++)
+                doc.vector[j] = mean[j] + (float) random.nextGaussian() / (float) Math.sqrt(numDimensions);
+            Linalg.norm(doc.vector, 0, numDimensions);
+            docs.add(doc);
+        }
+
+        var index = new DuplicateIndex(numDimensions, docs);
+        for (int i = 0; i < docs.size(); i++)
+            index.add(i, index.keys(docs.get(i).vector));
+        int found = 0;
+        for (int i = 0; i < 500; i++) {
+            var copy = docs.get(i).vector.clone();
+            for (int j = 0; j < numDimensions; j++)
+                copy[j] += (float) random.nextGaussian() * 0.01f;
+            Linalg.norm(copy, 0, numDimensions);
+            long numCandidates = index.numCandidates;
+            if (index.findDuplicate(copy, index.keys(copy), docs, 0.95f) == i)
+                found++;
+            assertTrue(index.numCandidates - numCandidates <= DuplicateIndex.NUM_BANDS
+                    * DuplicateIndex.MAX_CANDIDATES_PER_BAND);
+        }
+        // Uncentered, about 10% of the documents end up candidates of each lookup.
+        assertTrue(index.numCandidates / index.numLookups < 100);
+        assertTrue(found >= 490);
+    }
+}
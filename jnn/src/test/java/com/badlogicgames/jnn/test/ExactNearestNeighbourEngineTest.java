@@ -2,6 +2,11 @@ package com.badlogicgames.jnn.test;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 
 import org.junit.jupiter.api.Test;
 
@@ -12,6 +17,17 @@ import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine.TopKSelection;
 public class ExactNearestNeighbourEngineTest {
     @Test
     public void testBasics() {
+        var vectorsPerBlock = ExactNearestNeighbourEngine.VECTORS_PER_BLOCK;
+        try {
+            // Small blocks, so the parallel engines get helpers.
+            ExactNearestNeighbourEngine.VECTORS_PER_BLOCK = 4;
+            testQueries();
+        } finally {
+            ExactNearestNeighbourEngine.VECTORS_PER_BLOCK = vectorsPerBlock;
+        }
+    }
+
+    static void testQueries() {
         var numVectors = 20;
         var numDimensions = 123;
         var k = 3;
@@ -40,4 +56,38 @@ public class ExactNearestNeighbourEngineTest {
         assertEquals(heapResults.length, k);
         assertArrayEquals(baselineResult, heapResults);
     }
+
+    @Test
+    public void testBusyExecutorDoesNotBlockQueries() {
+        var numDimensions = 16;
+        var vectorsPerBlock = ExactNearestNeighbourEngine.VECTORS_PER_BLOCK;
+        var executor = Executors.newSingleThreadExecutor();
+        var release = new CountDownLatch(1);
+        try {
+            ExactNearestNeighbourEngine.VECTORS_PER_BLOCK = 8;
+            // The only executor thread is busy with another query's scan.
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            var vectors = Benchmark.randomDocuments(100, numDimensions).stream().map((doc) -> doc.vector)
+                    .toArray(float[][]::new);
+            var queryVector = Benchmark.randomVector(numDimensions);
+            var baselineEngine = new ExactNearestNeighbourEngine(numDimensions, 1, TopKSelection.SORT_SELECTION);
+            baselineEngine.addVectors(vectors);
+            var engine = new ExactNearestNeighbourEngine(numDimensions, 4, TopKSelection.SORT_SELECTION, executor);
+            engine.addVectors(vectors);
+            var expected = baselineEngine.query(queryVector, 5);
+            var actual = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> engine.query(queryVector, 5));
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i].index, actual[i].index);
+        } finally {
+            ExactNearestNeighbourEngine.VECTORS_PER_BLOCK = vectorsPerBlock;
+            release.countDown();
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,140 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.ReplicationLog.EventType;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.VectorCollectionInfo;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+
+public class MemoryBudgetTest {
+    static HashMap<String, VectorCollectionInfo> collections(VectorStore store) {
+        var result = new HashMap<String, VectorCollectionInfo>();
+        for (var info : store.getCollections())
+            result.put(info.id, info);
+        return result;
+    }
+
+    @Test
+    public void testEviction() throws InterruptedException {
+        var numDimensions = 64;
+        var numEngines = new AtomicInteger();
+        try {
+            // Enough room for one collection of 1000 documents, but not two.
+            var store = new VectorStore("tmp", (numDims) -> {
+                numEngines.incrementAndGet();
+                return new ExactNearestNeighbourEngine(numDims, 1);
+            }, 1024 * 1024);
+            var docs = Benchmark.randomDocuments(1000, numDimensions).toArray(new VectorDocument[0]);
+            store.createCollection("a");
+            store.addDocuments("a", docs);
+            var queryVector = Benchmark.randomVector(numDimensions);
+            var expected = store.query("a", queryVector, 10);
+            assertTrue(collections(store).get("a").footprintBytes > 0);
+
+            store.createCollection("b");
+            store.addDocuments("b", docs);
+            var info = collections(store);
+            assertFalse(info.get("a").loaded);
+            assertEquals(0, info.get("a").footprintBytes);
+            assertEquals(1000, info.get("a").numDocuments);
+            assertTrue(info.get("b").loaded);
+
+            // Replicas tailing the log get the documents of evicted collections from disk.
+            var numDocuments = 0;
+            for (var event : store.readReplicationEvents(0, 0, 10000)) {
+                if (event.type == EventType.ADD && event.collectionId.equals("a")) {
+                    for (int i = 0; i < event.count; i++)
+                        assertEquals(docs[event.offset + i].uri, event.documents[i].uri);
+                    numDocuments += event.count;
+                }
+            }
+            assertEquals(1000, numDocuments);
+            assertFalse(collections(store).get("a").loaded);
+
+            // Concurrent queries against the evicted collection share one load.
+            numEngines.set(0);
+            var futures = new ArrayList<CompletableFuture<VectorStoreSimilarity[]>>();
+            for (int i = 0; i < 8; i++)
+                futures.add(CompletableFuture.supplyAsync(() -> store.query("a", queryVector, 10)));
+            for (var future : futures) {
+                var actual = future.join();
+                for (int i = 0; i < expected.length; i++)
+                    assertEquals(expected[i].doc.uri, actual[i].doc.uri);
+            }
+            assertEquals(1, numEngines.get());
+            info = collections(store);
+            assertTrue(info.get("a").loaded);
+            assertFalse(info.get("b").loaded);
+
+            // Adding to an evicted collection loads it first.
+            store.addDocuments("b", Benchmark.randomDocuments(10, numDimensions).toArray(new VectorDocument[0]));
+            assertEquals(1010, store.getDocuments("b", 0, 2000).size());
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testWriteDoesNotBlockOtherCollections() throws InterruptedException {
+        var numDimensions = 16;
+        var block = new AtomicBoolean();
+        var blocked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        try {
+            var store = new VectorStore("tmp", (numDims) -> new ExactNearestNeighbourEngine(numDims, 1) {
+                @Override
+                public void addVectors(float[][] vectors) {
+                    if (block.getAndSet(false)) {
+                        blocked.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    super.addVectors(vectors);
+                }
+            });
+            var docs = Benchmark.randomDocuments(100, numDimensions).toArray(new VectorDocument[0]);
+            store.createCollection("a");
+            store.addDocuments("a", docs);
+            store.createCollection("b");
+            store.addDocuments("b", docs);
+
+            // Stall a write of b while holding its lock, a stays usable.
+            block.set(true);
+            var write = CompletableFuture.runAsync(() -> store.addDocuments("b",
+                    Benchmark.randomDocuments(10, numDimensions).toArray(new VectorDocument[0])));
+            blocked.await();
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                assertEquals(5, store.query("a", Benchmark.randomVector(numDimensions), 5).length);
+                store.addDocuments("a", Benchmark.randomDocuments(10, numDimensions).toArray(new VectorDocument[0]));
+                assertEquals(2, store.getCollections().size());
+            });
+            release.countDown();
+            write.join();
+            assertEquals(110, store.getDocuments("a", 0, 200).size());
+            assertEquals(110, store.getDocuments("b", 0, 200).size());
+        } finally {
+            release.countDown();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.QueryScheduler;
+import com.badlogicgames.jnn.QueryScheduler.QueryRejectedException;
+import com.badlogicgames.jnn.QueryScheduler.TenantStats;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStoreServer;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+import com.badlogicgames.jnn.engines.NearestNeighbourEngine.EngineSimilarity;
+
+public class QuerySchedulerTest {
+    static TenantStats stats(QueryScheduler scheduler, String tenant) {
+        for (var stats : scheduler.getStats()) {
+            if (stats.tenant.equals(tenant))
+                return stats;
+        }
+        return null;
+    }
+
+    static void awaitQueued(QueryScheduler scheduler, String tenant, int queued) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            var stats = stats(scheduler, tenant);
+            if (stats != null && stats.queued == queued)
+                return;
+            Thread.sleep(1);
+        }
+        throw new AssertionError("Tenant " + tenant + " never had " + queued + " queued queries");
+    }
+
+    /**
+     * Submits the query like the server does, handing it off to another thread
+     * once admitted. The future completes after the query's slot was released.
+     */
+    static CompletableFuture<Void> submit(QueryScheduler scheduler, String tenant, long cost, Runnable query) {
+        var result = new CompletableFuture<Void>();
+        scheduler.submit(tenant, cost, (release) -> CompletableFuture.runAsync(() -> {
+            Throwable error = null;
+            try {
+                query.run();
+            } catch (Throwable t) {
+                error = t;
+            }
+            release.run();
+            if (error != null)
+                result.completeExceptionally(error);
+            else
+                result.complete(null);
+        }), result::completeExceptionally);
+        return result;
+    }
+
+    @Test
+    public void testCheapQueriesOvertakeScans() throws InterruptedException {
+        var scheduler = new QueryScheduler(1, 1, 100, 10000, new HashMap<>());
+        var order = Collections.synchronizedList(new ArrayList<String>());
+        var blocker = new CountDownLatch(1);
+        var futures = new ArrayList<CompletableFuture<Void>>();
+
+        futures.add(submit(scheduler, "large", 1000000, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((stats(scheduler, "large") == null || stats(scheduler, "large").running == 0)
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        for (int i = 0; i < 3; i++) {
+            futures.add(submit(scheduler, "large", 1000000, () -> order.add("large")));
+            awaitQueued(scheduler, "large", i + 1);
+        }
+        futures.add(submit(scheduler, "small", 1000, () -> order.add("small")));
+        awaitQueued(scheduler, "small", 1);
+
+        blocker.countDown();
+        for (var future : futures)
+            future.join();
+        assertEquals(List.of("small", "large", "large", "large"), order);
+        assertEquals(4, stats(scheduler, "large").completed);
+        assertEquals(0, stats(scheduler, "small").queued);
+    }
+
+    @Test
+    public void testTenantLimits() throws InterruptedException {
+        var scheduler = new QueryScheduler(2, 1, 1, 10000, new HashMap<>());
+        var blocker = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        var running = submit(scheduler, "large", 1000000, blocked);
+        var queued = submit(scheduler, "large", 1000000, blocked);
+        awaitQueued(scheduler, "large", 1);
+
+        // The second slot is free for other tenants, but large is at its limit and its queue is full.
+        submit(scheduler, "small", 1000, () -> {
+        }).join();
+        var rejected = assertThrows(CompletionException.class, () -> submit(scheduler, "large", 1000000, () -> {
+        }).join());
+        assertTrue(rejected.getCause() instanceof QueryRejectedException);
+        assertEquals(1, stats(scheduler, "large").rejected);
+
+        blocker.countDown();
+        running.join();
+        queued.join();
+        assertEquals(2, stats(scheduler, "large").completed);
+    }
+
+    @Test
+    public void testIdleTenantsAreForgotten() {
+        var maxIdleTenants = QueryScheduler.MAX_IDLE_TENANTS;
+        try {
+            QueryScheduler.MAX_IDLE_TENANTS = 10;
+            var weights = new HashMap<String, Float>();
+            weights.put("weighted", 2f);
+            var scheduler = new QueryScheduler(2, 1, 10, 10000, weights);
+            submit(scheduler, "weighted", 1, () -> {
+            }).join();
+            for (int i = 0; i < 100; i++)
+                submit(scheduler, "tenant-" + i, 1, () -> {
+                }).join();
+            var stats = scheduler.getStats();
+            assertEquals(11, stats.size());
+            assertEquals("tenant-90", stats.get(0).tenant);
+            assertEquals("weighted", stats.get(10).tenant);
+        } finally {
+            QueryScheduler.MAX_IDLE_TENANTS = maxIdleTenants;
+        }
+    }
+
+    @Test
+    public void testFloodingTenantDoesNotExhaustWorkers() throws Exception {
+        var release = new CountDownLatch(1);
+        // Queries against the 8 dimensional collection block until released.
+        var store = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1) {
+            @Override
+            public EngineSimilarity[] query(float[] query, int k) {
+                if (numDimensions == 8) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.query(query, k);
+            }
+        });
+        store.createCollection("flood");
+        store.addDocuments("flood", Benchmark.randomDocuments(10, 8).toArray(new VectorDocument[0]));
+        store.createCollection("light");
+        store.addDocuments("light", Benchmark.randomDocuments(10, 4).toArray(new VectorDocument[0]));
+        var scheduler = new QueryScheduler(2, 1, 10000, 60000, new HashMap<>());
+        var server = new VectorStoreServer(18441, store, null, scheduler);
+        try {
+            // More queued queries than the server has worker threads.
+            var client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            int numFloodQueries = Runtime.getRuntime().availableProcessors() * 10 + 20;
+            var floodQuery = HttpRequest.newBuilder(URI.create("http://localhost:18441/query"))
+                    .POST(HttpRequest.BodyPublishers
+                            .ofString("{\"id\": \"flood\", \"k\": 1, \"queryVector\": [1, 0, 0, 0, 0, 0, 0, 0]}"))
+                    .build();
+            var floodResponses = new ArrayList<CompletableFuture<HttpResponse<String>>>();
+            for (int i = 0; i < numFloodQueries; i++)
+                floodResponses.add(client.sendAsync(floodQuery, HttpResponse.BodyHandlers.ofString()));
+            awaitQueued(scheduler, "flood", numFloodQueries - 1);
+
+            var lightQuery = HttpRequest.newBuilder(URI.create("http://localhost:18441/query"))
+                    .timeout(Duration.ofSeconds(10))
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"id\": \"light\", \"k\": 1, \"queryVector\": [1, 0, 0, 0]}"))
+                    .build();
+            var response = client.send(lightQuery, HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("\"uri\""));
+            // The flooding tenant never got more than its one slot.
+            assertEquals(1, stats(scheduler, "flood").running);
+
+            release.countDown();
+            for (var floodResponse : floodResponses)
+                assertEquals(200, floodResponse.join().statusCode());
+            assertEquals(numFloodQueries, stats(scheduler, "flood").completed);
+        } finally {
+            release.countDown();
+            server.stop();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.NearestNeighbourEngineProvider;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStoreReplica;
+import com.badlogicgames.jnn.VectorStoreServer;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+
+public class ReplicationTest {
+    static void awaitCatchUp(VectorStoreReplica replica, long primaryHead) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (replica.getStatus().appliedSeq < primaryHead && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(primaryHead, replica.getStatus().appliedSeq);
+        assertEquals(0, replica.getStatus().lagEvents);
+    }
+
+    @Test
+    public void testReplication() throws InterruptedException {
+        var numDimensions = 16;
+        NearestNeighbourEngineProvider engineProvider = (numDims) -> new ExactNearestNeighbourEngine(numDims, 1);
+        var primaryStore = new VectorStore("tmp/primary", engineProvider);
+        var primary = new VectorStoreServer(18411, primaryStore);
+        VectorStoreReplica replica = null;
+        try {
+            var docs = Benchmark.randomDocuments(300, numDimensions).toArray(new VectorDocument[0]);
+            primaryStore.createCollection("a");
+            primaryStore.addDocuments("a", docs);
+            primaryStore.createCollection("b");
+            primaryStore.addDocuments("b", docs);
+
+            var replicaStore = new VectorStore("tmp/replica", engineProvider);
+            replica = new VectorStoreReplica(replicaStore, "http://localhost:18411/");
+            awaitCatchUp(replica, primaryStore.getReplicationLog().getHead());
+            assertEquals(2, replicaStore.getCollections().size());
+
+            var moreDocs = Benchmark.randomDocuments(50, numDimensions).toArray(new VectorDocument[0]);
+            primaryStore.addDocuments("a", moreDocs);
+            primaryStore.deleteCollection("b");
+            assertEquals(10, primaryStore.addDocuments("a", Arrays.copyOf(docs, 10), 0.99f));
+            awaitCatchUp(replica, primaryStore.getReplicationLog().getHead());
+
+            var collections = replicaStore.getCollections();
+            assertEquals(1, collections.size());
+            assertEquals("a", collections.get(0).id);
+            assertEquals(350, collections.get(0).numDocuments);
+            assertEquals(10, collections.get(0).numAliases);
+            assertEquals(docs[9].uri, replicaStore.getAliases("a", 9, 1).get(0).canonicalUri);
+
+            var queryVector = Benchmark.randomVector(numDimensions);
+            var expected = primaryStore.query("a", queryVector, 5);
+            var actual = replicaStore.query("a", queryVector, 5);
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i].doc.uri, actual[i].doc.uri);
+
+            // A restarted replica resumes from its persisted position.
+            replica.stop();
+            replicaStore = new VectorStore("tmp/replica", engineProvider);
+            replica = new VectorStoreReplica(replicaStore, "http://localhost:18411/");
+            primaryStore.addDocuments("a", Benchmark.randomDocuments(10, numDimensions).toArray(new VectorDocument[0]));
+            awaitCatchUp(replica, primaryStore.getReplicationLog().getHead());
+            assertEquals(360, replicaStore.getCollections().get(0).numDocuments);
+            assertTrue(replica.getStatus().connected);
+
+            // A restarted primary starts a new epoch. The replica keeps collections that
+            // are consistent with the primary and only drops those the primary lost.
+            primaryStore.createCollection("c");
+            primaryStore.addDocuments("c", docs);
+            awaitCatchUp(replica, primaryStore.getReplicationLog().getHead());
+            long generation = replicaStore.getGeneration("a");
+            primary.stop();
+            Benchmark.deleteDirectory(new File("tmp/primary/c"));
+            primaryStore = new VectorStore("tmp/primary", engineProvider);
+            primary = new VectorStoreServer(18411, primaryStore);
+            primaryStore.addDocuments("a", Benchmark.randomDocuments(5, numDimensions).toArray(new VectorDocument[0]));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (replica.getStatus().epoch != primaryStore.getReplicationLog().getEpoch()
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            awaitCatchUp(replica, primaryStore.getReplicationLog().getHead());
+            collections = replicaStore.getCollections();
+            assertEquals(1, collections.size());
+            assertEquals(365, collections.get(0).numDocuments);
+            assertEquals(10, collections.get(0).numAliases);
+            assertEquals(generation, replicaStore.getGeneration("a"));
+        } finally {
+            if (replica != null)
+                replica.stop();
+            primary.stop();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.ResultSelection;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+import com.badlogicgames.jnn.VectorStoreServer;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+
+public class ResultSelectionTest {
+    static VectorStoreSimilarity candidate(float score, int tokenCount, float... vector) {
+        var doc = new VectorDocument();
+        doc.vector = vector;
+        doc.tokenCount = tokenCount;
+        return new VectorStoreSimilarity(score, doc);
+    }
+
+    @Test
+    public void testMaximalMarginalRelevance() {
+        var candidates = new VectorStoreSimilarity[] {
+                candidate(0.9f, 0, 1, 0),
+                candidate(0.89f, 0, 1, 0),
+                candidate(0.5f, 0, 0, 1)
+        };
+        var result = ResultSelection.maximalMarginalRelevance(candidates, 0.5f, 2);
+        assertEquals(2, result.length);
+        assertSame(candidates[0], result[0]);
+        assertSame(candidates[2], result[1]);
+
+        result = ResultSelection.maximalMarginalRelevance(candidates, 1, 2);
+        assertSame(candidates[0], result[0]);
+        assertSame(candidates[1], result[1]);
+    }
+
+    @Test
+    public void testPackTokenBudget() {
+        var candidates = new VectorStoreSimilarity[] {
+                candidate(0.9f, 300, 1, 0),
+                candidate(0.8f, 800, 1, 0),
+                candidate(0.7f, 500, 1, 0),
+                candidate(0.6f, 100, 1, 0)
+        };
+        var result = ResultSelection.packTokenBudget(candidates, 1000, 10);
+        assertEquals(3, result.length);
+        assertSame(candidates[0], result[0]);
+        assertSame(candidates[2], result[1]);
+        assertSame(candidates[3], result[2]);
+
+        assertEquals(1, ResultSelection.packTokenBudget(candidates, 1000, 1).length);
+    }
+
+    static VectorDocument document(String uri, int tokenCount, float... vector) {
+        var doc = new VectorDocument();
+        doc.uri = uri;
+        doc.title = uri;
+        doc.text = uri;
+        doc.tokenCount = tokenCount;
+        doc.vector = vector;
+        return doc;
+    }
+
+    static String[] uris(VectorStoreSimilarity[] result) {
+        var uris = new String[result.length];
+        for (int i = 0; i < result.length; i++)
+            uris[i] = result[i].doc.uri;
+        return uris;
+    }
+
+    @Test
+    public void testQuery() throws IOException, InterruptedException {
+        var server = new VectorStoreServer(18451, "tmp/server",
+                (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+        try {
+            var store = new VectorStore("tmp/store", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            store.createCollection("test");
+            store.addDocuments("test", new VectorDocument[] {
+                    document("a", 300, 1, 0, 0),
+                    document("near-a", 800, 0.99f, 0.14f, 0),
+                    document("b", 500, 0.8f, 0, 0.6f),
+                    document("c", 100, 0, 1, 0) });
+
+            var options = new QueryOptions();
+            options.queryVector = new float[] { 1, 0, 0 };
+            options.k = 2;
+            assertArrayEquals(new String[] { "a", "near-a" }, uris(store.query("test", options)));
+
+            options.diversify = true;
+            options.mmrLambda = 0.3f;
+            assertArrayEquals(new String[] { "a", "c" }, uris(store.query("test", options)));
+
+            options.diversify = false;
+            options.k = 10;
+            options.tokenBudget = 1000;
+            assertArrayEquals(new String[] { "a", "b", "c" }, uris(store.query("test", options)));
+
+            options.mmrLambda = 1.5f;
+            assertThrows(IllegalArgumentException.class, () -> ResultSelection.validate(options));
+            var query = "{\"id\": \"test\", \"k\": 2, \"queryVector\": [1, 0, 0], \"diversify\": true, \"mmrLambda\": -0.5}";
+            var response = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(URI.create("http://localhost:18451/query"))
+                            .POST(HttpRequest.BodyPublishers.ofString(query)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, response.statusCode());
+        } finally {
+            server.stop();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}
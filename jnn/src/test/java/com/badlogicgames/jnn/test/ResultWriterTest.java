@@ -0,0 +1,135 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.ResultWriter;
+import com.badlogicgames.jnn.ResultWriter.Projection;
+import com.badlogicgames.jnn.ShardedVectorStore;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStore.VectorStoreSimilarity;
+import com.badlogicgames.jnn.VectorStoreServer;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ResultWriterTest {
+    static final ObjectMapper objectMapper = new ObjectMapper();
+
+    static byte[] write(ResultWriter writer, VectorStoreSimilarity[] similarities, Projection projection)
+            throws IOException {
+        var out = new ByteArrayOutputStream();
+        writer.writeSimilarities(similarities, projection, out);
+        return out.toByteArray();
+    }
+
+    static List<String> fieldNames(JsonNode node) {
+        var names = new ArrayList<String>();
+        node.fieldNames().forEachRemaining(names::add);
+        return names;
+    }
+
+    @Test
+    public void testProjection() throws IOException {
+        var writer = new ResultWriter(objectMapper.getFactory(), 0);
+        var docs = Benchmark.randomDocuments(3, 4);
+        var similarities = new VectorStoreSimilarity[docs.size()];
+        for (int i = 0; i < similarities.length; i++)
+            similarities[i] = new VectorStoreSimilarity(0.5f, 0.25f, docs.get(i));
+
+        var json = objectMapper.readTree(write(writer, similarities, new Projection(new String[] { "uri", "score" })));
+        assertEquals(3, json.size());
+        assertEquals(List.of("score", "uri"), fieldNames(json.get(0)));
+        assertEquals("doc-0", json.get(0).get("uri").asText());
+        assertEquals(0.25, json.get(0).get("score").asDouble(), 0.0001);
+
+        json = objectMapper.readTree(write(writer, similarities, Projection.ALL));
+        assertEquals(List.of("distance", "score", "uri", "index", "title", "text", "tokenCount"),
+                fieldNames(json.get(1)));
+
+        json = objectMapper.readTree(write(writer, similarities, new Projection(new String[] { "uri", "vector" })));
+        assertEquals(4, json.get(2).get("vector").size());
+    }
+
+    @Test
+    public void testCachedOutputIsIdentical() throws IOException {
+        try {
+            var store = new VectorStore("tmp", (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+            store.createCollection("test");
+            store.addDocuments("test", Benchmark.randomDocuments(50, 8).toArray(new VectorDocument[0]));
+            var similarities = store.query("test", Benchmark.randomVector(8), 10);
+
+            var uncached = new ResultWriter(objectMapper.getFactory(), 0);
+            var cached = new ResultWriter(objectMapper.getFactory(), 1024 * 1024);
+            var projections = new Projection[] { Projection.ALL,
+                    // No distance or score, so no comma before the spliced fragment.
+                    new Projection(new String[] { "uri", "index", "title", "text", "tokenCount" }),
+                    new Projection(new String[] { "distance", "uri", "index", "title", "text", "tokenCount" }) };
+            for (var projection : projections) {
+                var expected = write(uncached, similarities, projection);
+                // First write fills the cache, second one is served from it.
+                assertArrayEquals(expected, write(cached, similarities, projection));
+                assertArrayEquals(expected, write(cached, similarities, projection));
+                objectMapper.readTree(expected);
+            }
+
+            var docs = store.getDocuments("test", 5, 10);
+            var expected = new ByteArrayOutputStream();
+            uncached.writeDocuments(docs, Projection.ALL, expected);
+            for (int i = 0; i < 2; i++) {
+                var actual = new ByteArrayOutputStream();
+                cached.writeDocuments(docs, store.getGeneration("test"), 5, Projection.ALL, actual);
+                assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+            }
+
+            assertTrue(cached.cacheBytes() > 0);
+            cached.invalidate(store.getGeneration("test"));
+            assertEquals(0, cached.cacheBytes());
+        } finally {
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testUnknownField() throws IOException, InterruptedException {
+        assertThrows(IllegalArgumentException.class, () -> new Projection(new String[] { "uri", "bogus" }));
+
+        var server = new VectorStoreServer(18421, "tmp/server",
+                (numDimensions) -> new ExactNearestNeighbourEngine(numDimensions, 1));
+        try {
+            var timeout = Duration.ofSeconds(5);
+            var client = new ShardedVectorStore(new String[] { "http://localhost:18421" }, timeout, timeout);
+            client.createCollection("test");
+            client.addDocuments("test", Benchmark.randomDocuments(5, 4).toArray(new VectorDocument[0]));
+            var http = HttpClient.newHttpClient();
+            var response = http.send(HttpRequest
+                    .newBuilder(URI.create("http://localhost:18421/get?id=test&offset=0&limit=5&fields=uri,bogus"))
+                    .GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, response.statusCode());
+
+            var query = "{\"id\": \"test\", \"k\": 2, \"queryVector\": [1, 0, 0, 0], \"fields\": [\"bogus\"]}";
+            response = http.send(HttpRequest.newBuilder(URI.create("http://localhost:18421/query"))
+                    .POST(HttpRequest.BodyPublishers.ofString(query)).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, response.statusCode());
+        } finally {
+            server.stop();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.badlogicgames.jnn.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+import com.badlogicgames.jnn.QueryScheduler;
+import com.badlogicgames.jnn.ShardedVectorStore;
+import com.badlogicgames.jnn.VectorStore;
+import com.badlogicgames.jnn.VectorStore.NearestNeighbourEngineProvider;
+import com.badlogicgames.jnn.VectorStore.QueryOptions;
+import com.badlogicgames.jnn.VectorStore.VectorDocument;
+import com.badlogicgames.jnn.VectorStoreServer;
+import com.badlogicgames.jnn.VectorStoreServer.QueryRequest;
+import com.badlogicgames.jnn.engines.ExactNearestNeighbourEngine;
+import com.badlogicgames.jnn.engines.NearestNeighbourEngine.EngineSimilarity;
+
+public class ShardedVectorStoreTest {
+    @Test
+    public void testScatterGather() {
+        var numDimensions = 32;
+        NearestNeighbourEngineProvider engineProvider = (numDims) -> new ExactNearestNeighbourEngine(numDims, 1);
+        var shard0 = new VectorStoreServer(18401, "tmp/shard-0", engineProvider);
+        var shard1 = new VectorStoreServer(18402, "tmp/shard-1", engineProvider);
+        try {
+            var timeout = Duration.ofSeconds(5);
+            var sharded = new ShardedVectorStore(new String[] { "http://localhost:18401", "http://localhost:18402/" },
+                    timeout, timeout);
+            var local = new VectorStore("tmp/local", engineProvider);
+            var docs = Benchmark.randomDocuments(500, numDimensions).toArray(new VectorDocument[0]);
+
+            local.createCollection("test");
+            local.addDocuments("test", docs);
+            sharded.createCollection("test");
+            sharded.addDocuments("test", docs);
+
+            var info = sharded.getCollections().get(0);
+            assertEquals("test", info.id);
+            assertEquals(numDimensions, info.numDimensions);
+            assertEquals(docs.length, info.numDocuments);
+            assertEquals(docs.length, sharded.getDocuments("test", 0, docs.length).size());
+            assertEquals(10, sharded.getDocuments("test", docs.length - 10, 100).size());
+
+            var options = new QueryOptions();
+            options.queryVector = Benchmark.randomVector(numDimensions);
+            options.k = 10;
+            var expected = local.query("test", options);
+            var actual = sharded.query("test", options);
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i].doc.uri, actual[i].doc.uri);
+                assertEquals(expected[i].similarity, actual[i].similarity, 0.0001f);
+            }
+
+            // A shard that doesn't answer is left out of the result.
+            var degraded = new ShardedVectorStore(
+                    new String[] { "http://localhost:18401", "http://localhost:18402", "http://localhost:18403" },
+                    timeout, timeout);
+            assertEquals(10, degraded.query("test", options).length);
+        } finally {
+            shard0.stop();
+            shard1.stop();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+
+    @Test
+    public void testSlowShardAndForwarding() throws InterruptedException {
+        var numDimensions = 16;
+        var release = new CountDownLatch(1);
+        NearestNeighbourEngineProvider slowProvider = (numDims) -> new ExactNearestNeighbourEngine(numDims, 1) {
+            @Override
+            public EngineSimilarity[] query(float[] query, int k) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.query(query, k);
+            }
+        };
+        var scheduler = new QueryScheduler(4, 2, 100, 10000, new HashMap<>());
+        var fast = new VectorStoreServer(18404,
+                new VectorStore("tmp/fast", (numDims) -> new ExactNearestNeighbourEngine(numDims, 1)), null,
+                scheduler);
+        var slow = new VectorStoreServer(18405, "tmp/slow", slowProvider);
+        try {
+            var sharded = new ShardedVectorStore(new String[] { "http://localhost:18404", "http://localhost:18405" },
+                    Duration.ofMillis(500), Duration.ofSeconds(5));
+            var docs = Benchmark.randomDocuments(200, numDimensions).toArray(new VectorDocument[0]);
+            sharded.createCollection("test");
+            sharded.addDocuments("test", docs);
+
+            // The slow shard answers after the query timeout, the fast shard's results are returned.
+            var request = new QueryRequest();
+            request.queryVector = Benchmark.randomVector(numDimensions);
+            request.k = 5;
+            request.tenant = "bot";
+            request.fields = new String[] { "uri" };
+            long start = System.nanoTime();
+            var result = sharded.query("test", request);
+            assertTrue((System.nanoTime() - start) / 1e6 < 4000);
+            assertEquals(5, result.length);
+            for (var similarity : result) {
+                assertEquals(0, sharded.shardOf(similarity.doc));
+                assertNull(similarity.doc.text);
+            }
+            assertEquals(1, QuerySchedulerTest.stats(scheduler, "bot").completed);
+        } finally {
+            release.countDown();
+            fast.stop();
+            slow.stop();
+            Benchmark.deleteDirectory(new File("tmp"));
+        }
+    }
+}